@@ -0,0 +1,84 @@
+"""
+question_type_labels.py
+问题分类训练数据生成工具
+
+从微调数据集 fine_tuning_dataset.jsonl 的用户问题（input 字段）中按关键词规则标注问题类型，
+再合并人工编写的种子问题 question_type_seeds.jsonl（补充微调数据集中没有的类型），
+输出后端本地分类器使用的训练数据：
+backend/backend-ai/src/main/resources/classifier/question_types.jsonl
+
+每行格式：{"label": "POINTS", "text": "如何获得额外的借阅积分？", "source": "fine_tuning_dataset"}
+类型与 AIApiService.analyzeQuestionType 的分类提示词保持一致。
+"""
+
+import json
+from pathlib import Path
+
+ROOT = Path(__file__).resolve().parents[3]
+DATASET_FILE = ROOT / "ai/data/processed/fine_tuning_dataset.jsonl"
+SEEDS_FILE = ROOT / "ai/data/processed/question_type_seeds.jsonl"
+OUTPUT_FILE = ROOT / "backend/backend-ai/src/main/resources/classifier/question_types.jsonl"
+
+LABELS = [
+    "GENERAL", "BOOK_SEARCH", "BOOK_RECOMMEND", "BOOK_REVIEW",
+    "CODE_QUESTION", "MATH_PROBLEM", "WRITING_HELP",
+    "BookBorrowing", "RULES", "POINTS",
+]
+
+# 借阅相关的关键词（图书外借管理办法覆盖的内容）
+BORROWING_KEYWORDS = ["借", "还书", "到期", "逾期", "赔偿", "损坏", "污损", "弄湿", "涂写", "折痕"]
+
+
+def label_dataset_question(text: str):
+    """按关键词规则标注微调数据集中的问题，无法判断时返回 None"""
+    if "积分" in text:
+        return "POINTS"
+    if "推荐" in text:
+        return "BOOK_RECOMMEND"
+    if any(keyword in text for keyword in BORROWING_KEYWORDS):
+        return "BookBorrowing"
+    return None
+
+
+def read_jsonl(path: Path):
+    with path.open(encoding="utf-8") as f:
+        return [json.loads(line) for line in f if line.strip()]
+
+
+def main():
+    rows = []
+    seen = set()
+
+    for item in read_jsonl(DATASET_FILE):
+        text = item.get("input", "").strip()
+        if not text or text in seen:
+            continue
+        label = label_dataset_question(text)
+        if label is None:
+            print(f"跳过无法标注的问题: {text}")
+            continue
+        seen.add(text)
+        rows.append({"label": label, "text": text, "source": "fine_tuning_dataset"})
+
+    for item in read_jsonl(SEEDS_FILE):
+        text = item["text"].strip()
+        if item["label"] not in LABELS:
+            raise ValueError(f"未知的问题类型: {item['label']}")
+        if text in seen:
+            continue
+        seen.add(text)
+        rows.append({"label": item["label"], "text": text, "source": "seed"})
+
+    OUTPUT_FILE.parent.mkdir(parents=True, exist_ok=True)
+    with OUTPUT_FILE.open("w", encoding="utf-8") as f:
+        for row in rows:
+            f.write(json.dumps(row, ensure_ascii=False) + "\n")
+
+    counts = {label: sum(1 for row in rows if row["label"] == label) for label in LABELS}
+    print(f"共写入 {len(rows)} 条训练数据到 {OUTPUT_FILE}")
+    for label, count in counts.items():
+        print(f"  {label}: {count}")
+
+
+if __name__ == "__main__":
+    main()
@@ -39,4 +39,9 @@ public class ChatMessageDTO {
      * 创建时间
      */
     private Date createTime;
+
+    /**
+     * 内容的估算token数，写入时计算，旧数据为null
+     */
+    private Integer tokenCount;
 } 
\ No newline at end of file
@@ -0,0 +1,306 @@
+package org.example.backendai.DTO;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.example.backendai.util.BookTitleScanner;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单次聊天流的上下文
+ *
+ * <p>随响应式管道传递，保存一次 /api/chat 请求的全部流式状态（待写入的内容、思考状态、计数、识别到的书名、耗时），
+ * 取代控制器上的 ThreadLocal 和单例字段。Reactor 回调可能运行在任意 Netty 事件循环线程上，
+ * 同一个流的事件按顺序到达，不同流之间互不共享状态。</p>
+ */
+@Getter
+public class ChatStreamContext {
+
+    private final String sessionId;
+
+    private final Long userId;
+
+    /**
+     * 问题类型，分类完成后设置
+     */
+    @Setter
+    private volatile String questionType;
+
+    /**
+     * 本次用户输入
+     */
+    @Setter
+    private volatile String question;
+
+    /**
+     * 发送给模型的系统提示词（不含用户身份信息）
+     */
+    @Setter
+    private volatile String systemPrompt;
+
+    /**
+     * 请求开始时间
+     */
+    private final long startTime;
+
+    /**
+     * 收到第一个上游事件的时间，0表示尚未收到
+     */
+    private volatile long firstEventTime;
+
+    /**
+     * 上游流结束的时间，0表示尚未结束
+     */
+    private volatile long upstreamEndTime;
+
+    private final AtomicInteger chunkCounter = new AtomicInteger(0);
+
+    /**
+     * 尚未写入数据库的回复内容，思考过程以 &lt;think&gt;...&lt;/think&gt; 包裹，写入后清空
+     */
+    @Getter(AccessLevel.NONE)
+    private final StringBuilder pendingContent = new StringBuilder();
+
+    /**
+     * 回复内容的开头部分，最多 retainLimit 个字符，用于会话预览和会话缓存
+     */
+    @Getter(AccessLevel.NONE)
+    private final StringBuilder retainedContent = new StringBuilder();
+
+    @Setter
+    private volatile int retainLimit = Integer.MAX_VALUE;
+
+    /**
+     * 回复是否超过 retainLimit，超过时 retainedContent 只有开头部分
+     */
+    private volatile boolean contentTruncated;
+
+    /**
+     * 是否保留发送给客户端的正文，缓存回答时需要
+     */
+    @Setter
+    private volatile boolean retainAnswer;
+
+    /**
+     * 发送给客户端的正文，不含思考过程，只在 retainAnswer 时累积
+     */
+    private final StringBuilder answerContent = new StringBuilder();
+
+    /**
+     * 分段写入的AI回复，写入第一段时创建
+     */
+    @Setter
+    private volatile ChatMessageDTO assistantMessage;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean saved = new AtomicBoolean(false);
+
+    /**
+     * 是否收到过思考内容
+     */
+    private volatile boolean seenThink;
+
+    /**
+     * 当前是否处于思考块中（已写入&lt;think&gt;但还未闭合）
+     */
+    private volatile boolean thinking;
+
+    /**
+     * 正文中的书名识别状态机
+     */
+    @Getter(AccessLevel.NONE)
+    private final BookTitleScanner titleScanner = new BookTitleScanner();
+
+    /**
+     * 在馆藏中查到的书籍
+     */
+    private final Map<String, BookDTO> foundBooks = new ConcurrentHashMap<>();
+
+    /**
+     * 已发起馆藏查询的书名，流式过程中和回答结束后都不重复查询
+     */
+    @Getter(AccessLevel.NONE)
+    private final Set<String> lookedUpTitles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 已通过book_info事件发送的书名
+     */
+    @Getter(AccessLevel.NONE)
+    private final Set<String> sentBookInfo = ConcurrentHashMap.newKeySet();
+
+    public ChatStreamContext(String sessionId, Long userId) {
+        this(sessionId, userId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param startTime 请求开始时间，包含会话准备等调用模型前的阶段
+     */
+    public ChatStreamContext(String sessionId, Long userId, long startTime) {
+        this.sessionId = sessionId;
+        this.userId = userId;
+        this.startTime = startTime;
+    }
+
+    /**
+     * 记录收到一个上游事件
+     *
+     * @return 当前事件序号
+     */
+    public int recordEvent() {
+        if (firstEventTime == 0) {
+            firstEventTime = System.currentTimeMillis();
+        }
+        return chunkCounter.incrementAndGet();
+    }
+
+    /**
+     * 追加思考内容
+     */
+    public void appendThink(String text) {
+        seenThink = true;
+        if (!thinking) {
+            append("<think>");
+            thinking = true;
+        }
+        append(text);
+    }
+
+    /**
+     * 追加正文内容，如果思考块未闭合则先闭合
+     */
+    public void appendContent(String text) {
+        closeThink();
+        append(text);
+        if (retainAnswer) {
+            answerContent.append(text);
+        }
+    }
+
+    private synchronized void append(String text) {
+        pendingContent.append(text);
+        int room = retainLimit - retainedContent.length();
+        if (text.length() <= room) {
+            retainedContent.append(text);
+        } else {
+            retainedContent.append(text, 0, Math.max(room, 0));
+            contentTruncated = true;
+        }
+    }
+
+    /**
+     * 取出尚未写入的内容
+     *
+     * <p>末尾的反斜杠留到下一段，避免把 {@code \n} 拆到两段中。</p>
+     *
+     * @param minChars 至少积累的字符数，为0时取出全部
+     * @return 需要写入的内容，不足 minChars 或没有内容时返回null
+     */
+    public synchronized String drainPendingContent(int minChars) {
+        int length = pendingContent.length();
+        if (length == 0 || (minChars > 0 && length < minChars)) {
+            return null;
+        }
+        if (minChars > 0 && pendingContent.charAt(length - 1) == '\\') {
+            length--;
+        }
+        String segment = pendingContent.substring(0, length);
+        pendingContent.delete(0, length);
+        return segment;
+    }
+
+    /**
+     * 回复内容的开头部分，不超过 retainLimit 个字符
+     */
+    public synchronized String getRetainedContent() {
+        return retainedContent.toString();
+    }
+
+    /**
+     * 标记AI回复已保存
+     *
+     * @return 之前未保存过时返回true
+     */
+    public boolean markSaved() {
+        return saved.compareAndSet(false, true);
+    }
+
+    /**
+     * 扫描正文增量中的书名
+     *
+     * @return 本次新完成的书名
+     */
+    public List<String> scanTitles(String text) {
+        return titleScanner.feed(text);
+    }
+
+    /**
+     * 检测到的书籍名称（思考结束后的正文中出现的书名）
+     */
+    public Set<String> getBookNames() {
+        return titleScanner.getTitles();
+    }
+
+    /**
+     * 记录书名已发起查询
+     *
+     * @return 之前未查询过时返回true
+     */
+    public boolean markLookedUp(String title) {
+        return lookedUpTitles.add(title);
+    }
+
+    public int getLookedUpCount() {
+        return lookedUpTitles.size();
+    }
+
+    /**
+     * 记录书籍信息已发送
+     *
+     * @return 之前未发送过时返回true
+     */
+    public boolean markBookInfoSent(String title) {
+        return sentBookInfo.add(title);
+    }
+
+    /**
+     * 闭合未结束的思考块
+     */
+    public void closeThink() {
+        if (thinking) {
+            append("</think>");
+            thinking = false;
+        }
+    }
+
+    /**
+     * 标记上游流结束
+     */
+    public void markUpstreamEnd() {
+        closeThink();
+        upstreamEndTime = System.currentTimeMillis();
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * 首个上游事件的延迟，尚未收到时返回-1
+     */
+    public long getFirstEventLatencyMillis() {
+        return firstEventTime == 0 ? -1 : firstEventTime - startTime;
+    }
+
+    /**
+     * 完成去重使用的键
+     */
+    public String getCompletionKey() {
+        return sessionId + "_" + startTime;
+    }
+}
@@ -0,0 +1,64 @@
+package org.example.backendai.DTO;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 模型流式响应事件
+ *
+ * <p>由 {@link org.example.backendai.util.SseEventDecoder} 从上游字节流中解码得到，
+ * 对应上游 SSE 数据中的 {"type": "...", "data": "..."} 结构</p>
+ */
+@Getter
+@AllArgsConstructor
+public class StreamEvent {
+
+    /**
+     * 事件类型
+     */
+    public enum Type {
+        CONTENT("content"),  // 正文内容
+        THINK("think"),      // 思考过程
+        END("end");          // 结束标记
+
+        private final String wireName;
+
+        Type(String wireName) {
+            this.wireName = wireName;
+        }
+
+        public String getWireName() {
+            return wireName;
+        }
+
+        /**
+         * 根据上游的type字段解析事件类型，未知类型按正文处理
+         */
+        public static Type fromWireName(String name) {
+            if ("think".equals(name)) {
+                return THINK;
+            }
+            if ("end".equals(name)) {
+                return END;
+            }
+            return CONTENT;
+        }
+    }
+
+    private final Type type;
+
+    private final String data;
+
+    public static StreamEvent content(String data) {
+        return new StreamEvent(Type.CONTENT, data);
+    }
+
+    public static StreamEvent end() {
+        return new StreamEvent(Type.END, "");
+    }
+
+    @Override
+    public String toString() {
+        return type.getWireName() + ": " + data;
+    }
+}
@@ -0,0 +1,43 @@
+package org.example.backendai.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.example.backendai.util.SseCoalescer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+/**
+ * 流式对话输出配置
+ */
+@Configuration
+public class ChatStreamConfig {
+
+    @Value("${chat.stream.coalesce.max-latency-ms:30}")
+    private long maxLatencyMillis;
+
+    @Value("${chat.stream.coalesce.max-bytes:512}")
+    private int maxBytes;
+
+    @Value("${chat.stream.slow-client.max-pending-bytes:65536}")
+    private int maxPendingBytes;
+
+    @Value("${chat.stream.slow-client.policy:BACKPRESSURE}")
+    private SseCoalescer.SlowClientPolicy slowClientPolicy;
+
+    /**
+     * 对话事件流的输出阶段：合并正文事件并处理慢客户端
+     */
+    @Bean
+    public SseCoalescer sseCoalescer(MeterRegistry meterRegistry) {
+        return new SseCoalescer(
+                Duration.ofMillis(Math.max(0, maxLatencyMillis)),
+                maxBytes,
+                maxPendingBytes,
+                slowClientPolicy,
+                Schedulers.parallel(),
+                meterRegistry.counter("chat.stream.slow_client", "policy", slowClientPolicy.name())::increment);
+    }
+}
@@ -1,43 +1,173 @@
 package org.example.backendai.config;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.netty.channel.ChannelOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
 
+import java.net.SocketAddress;
 import java.time.Duration;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
 
+/**
+ * 模型服务客户端配置
+ *
+ * <p>所有对模型服务的请求共用一个显式配置的连接池：连接保持长连接复用，空闲和存活超时的连接在后台回收。
+ * 获取连接的等待队列有上限和超时，高峰期超出时请求立即失败并返回错误事件，不会在连接池后面无限排队。
+ * 连接池按远端地址分别计数，每个模型服务节点最多 max-connections 个连接，启动完成后每个节点预先建立 warmup-connections 个连接。
+ * 重试、超时和熔断按调用类型在 {@code ModelCallGuard} 中处理，节点选择在 {@code ModelEndpointRouter} 中处理。</p>
+ *
+ * <p>连接池指标：ai.client.pool.active（使用中）、ai.client.pool.idle（空闲）、
+ * ai.client.pool.pending（等待获取连接）、ai.client.pool.total（已建立），按远端地址区分。</p>
+ */
 @Configuration
 public class WebClientConfig {
-    
+
     private static final Logger logger = LoggerFactory.getLogger(WebClientConfig.class);
-    
+
+    private static final String POOL_NAME = "model-service";
+
+    @Value("${ai.endpoints.urls:${custom-model.api-base}}")
+    private String[] endpointUrls;
+
+    @Value("${ai.client.pool.max-connections:200}")
+    private int maxConnections;
+
+    @Value("${ai.client.pool.pending-acquire-max-count:400}")
+    private int pendingAcquireMaxCount;
+
+    @Value("${ai.client.pool.pending-acquire-timeout-ms:5000}")
+    private long pendingAcquireTimeoutMillis;
+
+    @Value("${ai.client.pool.max-idle-seconds:60}")
+    private long maxIdleSeconds;
+
+    @Value("${ai.client.pool.max-life-seconds:600}")
+    private long maxLifeSeconds;
+
+    @Value("${ai.client.pool.evict-interval-seconds:30}")
+    private long evictIntervalSeconds;
+
+    @Value("${ai.client.connect-timeout-ms:5000}")
+    private int connectTimeoutMillis;
+
+    @Value("${ai.client.pool.warmup-connections:4}")
+    private int warmupConnections;
+
+    /**
+     * 模型服务连接池
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider modelConnectionProvider(MeterRegistry meterRegistry) {
+        return ConnectionProvider.builder(POOL_NAME)
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMillis))
+                .maxIdleTime(Duration.ofSeconds(maxIdleSeconds))
+                .maxLifeTime(Duration.ofSeconds(maxLifeSeconds))
+                .evictInBackground(Duration.ofSeconds(evictIntervalSeconds))
+                .metrics(true, () -> new PoolMeterRegistrar(meterRegistry))
+                .build();
+    }
+
+    @Bean
+    public HttpClient modelHttpClient(ConnectionProvider modelConnectionProvider) {
+        return HttpClient.create(modelConnectionProvider)
+                .keepAlive(true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+    }
+
     @Bean
-    public WebClient.Builder webClientBuilder() {
+    public WebClient.Builder webClientBuilder(HttpClient modelHttpClient) {
         return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(modelHttpClient))
                 .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(16 * 1024 * 1024))
                 .filter((request, next) -> {
                     logger.info("发送请求: {} {}", request.method(), request.url());
                     return next.exchange(request)
-                            .timeout(Duration.ofSeconds(300))
-                            .doOnError(error -> 
+                            .doOnError(error ->
                                 logger.error("请求失败: {} - {}", error.getClass().getName(), error.getMessage())
                             );
-                })
-                .filter((request, next) -> {
-                    return next.exchange(request)
-                            .retry(2)
-                            .onErrorResume(error -> {
-                                logger.error("重试后仍然失败: {}", error.getMessage());
-                                return Mono.error(error);
-                            });
                 });
     }
-    
+
     @Bean
     public WebClient webClient(WebClient.Builder webClientBuilder) {
         return webClientBuilder.build();
     }
-} 
\ No newline at end of file
+
+    /**
+     * 启动完成后初始化事件循环和DNS解析器，并预先建立到每个模型服务节点的连接，失败时只记录日志
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpModelConnections(ApplicationReadyEvent event) {
+        HttpClient httpClient = event.getApplicationContext().getBean("modelHttpClient", HttpClient.class);
+        httpClient.warmup()
+                .thenMany(Flux.fromArray(endpointUrls)
+                        .map(String::trim)
+                        .filter(url -> !url.isEmpty())
+                        .flatMap(url -> Flux.range(0, Math.max(0, warmupConnections)).map(i -> url))
+                        .flatMap(url -> httpClient.head()
+                                .uri(url)
+                                .responseSingle((response, body) -> body.then(Mono.just(response.status())))
+                                .onErrorResume(error -> {
+                                    logger.warn("预建模型服务连接失败: {}", error.getMessage());
+                                    return Mono.empty();
+                                })))
+                .count()
+                .subscribe(count -> logger.info("模型服务连接池预热完成，预建{}个连接", count));
+    }
+
+    /**
+     * 把连接池状态注册为Micrometer指标
+     */
+    private static class PoolMeterRegistrar implements ConnectionProvider.MeterRegistrar {
+
+        private static final List<String> METER_NAMES = List.of(
+                "ai.client.pool.active", "ai.client.pool.idle", "ai.client.pool.pending", "ai.client.pool.total");
+
+        private final MeterRegistry meterRegistry;
+
+        private PoolMeterRegistrar(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Override
+        public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+            Tags tags = Tags.of("pool", poolName, "remote", String.valueOf(remoteAddress));
+            gauge("ai.client.pool.active", tags, metrics, ConnectionPoolMetrics::acquiredSize);
+            gauge("ai.client.pool.idle", tags, metrics, ConnectionPoolMetrics::idleSize);
+            gauge("ai.client.pool.pending", tags, metrics, ConnectionPoolMetrics::pendingAcquireSize);
+            gauge("ai.client.pool.total", tags, metrics, ConnectionPoolMetrics::allocatedSize);
+        }
+
+        @Override
+        public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+            Tags tags = Tags.of("pool", poolName, "remote", String.valueOf(remoteAddress));
+            for (String name : METER_NAMES) {
+                meterRegistry.find(name).tags(tags).meters().forEach(meterRegistry::remove);
+            }
+        }
+
+        private void gauge(String name, Tags tags, ConnectionPoolMetrics metrics,
+                           ToDoubleFunction<ConnectionPoolMetrics> value) {
+            Gauge.builder(name, metrics, value).tags(tags).register(meterRegistry);
+        }
+    }
+}
@@ -11,7 +11,7 @@ import java.util.Date;
  * 聊天消息实体类
  */
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChatMessage {
@@ -44,4 +44,9 @@ public class ChatMessage {
      * 创建时间
      */
     private Date createTime;
+
+    /**
+     * 内容的估算token数，写入时计算，旧数据为null
+     */
+    private Integer tokenCount;
 } 
\ No newline at end of file
@@ -49,4 +49,19 @@ public class ChatSession {
      * 状态（0-已删除，1-正常）
      */
     private Integer status;
+
+    /**
+     * 较早对话的滚动摘要，未生成时为null
+     */
+    private String summary;
+
+    /**
+     * 摘要覆盖的消息数，即按时间顺序最早的若干条消息
+     */
+    private Integer summaryMessageCount;
+
+    /**
+     * 摘要覆盖的最后一条消息的创建时间
+     */
+    private Date summaryUntil;
 } 
\ No newline at end of file
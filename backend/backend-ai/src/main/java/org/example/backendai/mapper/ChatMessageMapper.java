@@ -14,8 +14,8 @@ public interface ChatMessageMapper {
     /**
      * 添加聊天消息
      */
-    @Insert("INSERT INTO chat_message (id, session_id, user_id, role, content, create_time) " +
-            "VALUES (#{id}, #{sessionId}, #{userId}, #{role}, #{content}, #{createTime})")
+    @Insert("INSERT INTO chat_message (id, session_id, user_id, role, content, create_time, token_count) " +
+            "VALUES (#{id}, #{sessionId}, #{userId}, #{role}, #{content}, #{createTime}, #{tokenCount})")
     @Options(useGeneratedKeys = false)
     int insert(ChatMessage chatMessage);
     
@@ -25,6 +25,32 @@ public interface ChatMessageMapper {
     @Select("SELECT * FROM chat_message WHERE session_id = #{sessionId} ORDER BY create_time ASC")
     List<ChatMessage> selectBySessionId(String sessionId);
     
+    /**
+     * 查询会话最近的若干条消息，按时间降序，使用 idx_session_time 索引
+     */
+    @Select("SELECT * FROM chat_message WHERE session_id = #{sessionId} ORDER BY create_time DESC LIMIT #{limit}")
+    List<ChatMessage> selectRecentBySessionId(@Param("sessionId") String sessionId, @Param("limit") int limit);
+    
+    /**
+     * 查询用户最近的若干条消息，按时间降序
+     */
+    @Select("SELECT * FROM chat_message WHERE user_id = #{userId} ORDER BY create_time DESC LIMIT #{limit}")
+    List<ChatMessage> selectRecentByUserId(@Param("userId") Long userId, @Param("limit") int limit);
+
+    /**
+     * 统计会话的消息数
+     */
+    @Select("SELECT COUNT(*) FROM chat_message WHERE session_id = #{sessionId}")
+    int countBySessionId(String sessionId);
+
+    /**
+     * 按时间升序分段查询会话消息，时间相同时按ID排序以保证分段稳定
+     */
+    @Select("SELECT * FROM chat_message WHERE session_id = #{sessionId} ORDER BY create_time ASC, id ASC " +
+            "LIMIT #{limit} OFFSET #{offset}")
+    List<ChatMessage> selectRangeBySessionId(@Param("sessionId") String sessionId,
+                                             @Param("offset") int offset, @Param("limit") int limit);
+
     /**
      * 查询会话最近的一条消息
      */
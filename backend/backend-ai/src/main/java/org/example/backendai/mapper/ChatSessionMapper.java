@@ -3,6 +3,7 @@ package org.example.backendai.mapper;
 import org.apache.ibatis.annotations.*;
 import org.example.backendai.entity.ChatSession;
 
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -31,6 +32,16 @@ public interface ChatSessionMapper {
     @Select("SELECT * FROM chat_session WHERE id = #{id}")
     ChatSession selectById(String id);
     
+    /**
+     * 更新会话摘要，摘要覆盖的消息数与预期不符（已被其他任务更新）时不更新，也不改变会话的更新时间
+     */
+    @Update("UPDATE chat_session SET summary = #{summary}, summary_message_count = #{summaryMessageCount}, " +
+            "summary_until = #{summaryUntil}, updated_at = updated_at " +
+            "WHERE id = #{id} AND summary_message_count = #{expectedMessageCount}")
+    int updateSummary(@Param("id") String id, @Param("summary") String summary,
+                      @Param("summaryMessageCount") int summaryMessageCount, @Param("summaryUntil") Date summaryUntil,
+                      @Param("expectedMessageCount") int expectedMessageCount);
+
     /**
      * 根据用户ID查询聊天会话列表
      */
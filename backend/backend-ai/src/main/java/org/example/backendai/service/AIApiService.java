@@ -1,6 +1,8 @@
 package org.example.backendai.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.backendai.DTO.StreamEvent;
+import org.example.backendai.util.SseEventDecoder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
@@ -10,20 +12,17 @@ import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import org.springframework.beans.factory.annotation.Autowired;
 import java.util.*;
-import java.time.Duration;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
-import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +37,9 @@ import org.slf4j.LoggerFactory;
  *   <li>统一管理API通信</li>
  *   <li>生成AI内容和创建嵌入向量</li>
  * </ul>
+ * 
+ * <p>相同参数的非流式调用由 {@link ModelCallCoalescer} 合并为一次上游调用。
+ * 对话和问题分类按 INTERACTIVE、画像分析、推荐检索和会话摘要按 BACKGROUND 优先级由 {@link ModelCallDispatcher} 分配并发名额</p>
  */
 @Service
 public class AIApiService {
@@ -46,22 +48,42 @@ public class AIApiService {
     private static final ObjectMapper objectMapper = new ObjectMapper();
     private static final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
 
-    @Value("${ai.forward.url}")
-    private String aiForwardUrl;
+    @Value("${ai.endpoints.generate-path:/generate}")
+    private String generatePath;
+
+    private final WebClient webClient;
 
-    @Value("${custom-model.api-url}")
-    private String aiApiBaseUrl;
+    @Autowired
+    private ModelCallGuard modelCallGuard;
 
-    @Value("${custom-model.api-base}")
-    private String aiApiBase;
+    @Autowired
+    private ModelEndpointRouter endpointRouter;
 
-    private final WebClient webClient;
+    @Autowired
+    private ModelCallCoalescer callCoalescer;
+
+    @Autowired
+    private ModelCallDispatcher callDispatcher;
+
+    /**
+     * 模型流式请求失败时代替回复发送给用户的内容
+     */
+    public static final String FALLBACK_MESSAGE = "抱歉，AI服务暂时不可用，请稍后再试。";
 
     @Autowired
     public AIApiService(WebClient webClient) {
         this.webClient = webClient;
     }
 
+    /**
+     * 问题类型，顺序与分类提示词一致
+     */
+    public static final List<String> QUESTION_TYPES = List.of(
+        "GENERAL", "BOOK_SEARCH", "BOOK_RECOMMEND", "BOOK_REVIEW",
+        "CODE_QUESTION", "MATH_PROBLEM", "WRITING_HELP",
+        "BookBorrowing", "RULES", "POINTS"
+    );
+
     /**
      * 分析问题类型
      * 
@@ -70,32 +92,17 @@ public class AIApiService {
      */
     public Mono<String> analyzeQuestionType(String userInput) {
         // 创建问题分析请求
-        Map<String, Object> analysisRequest = Map.of(
-            "text", "你是一个专门负责对用户问题进行分类的AI助手。请分析以下用户输入，将其分类为以下类别之一：\n" +
-                    "1. GENERAL - 通用问答\n" +
-                    "2. BOOK_SEARCH - 图书查询\n" +
-                    "3. BOOK_RECOMMEND - 图书推荐\n" +
-                    "4. BOOK_REVIEW - 图书评论\n" +
-                    "5. CODE_QUESTION - 编程问题\n" +
-                    "6. MATH_PROBLEM - 数学问题\n" +
-                    "7. WRITING_HELP - 写作帮助\n" +
-                    "8. BookBorrowing - 图书借阅\n" +
-                    "9. RULES - 图书馆规则\n" +
-                    "10. POINTS - 图书馆积分\n\n" +
-                    "请仅返回类别代码，例如 BOOK_SEARCH，不要包含其他解释。\n\n" +
-                    "用户输入: " + userInput,
-            "system_prompt", "你是一个问题分类器。只输出分类结果，不要有任何其他内容。"
-        );
+        Map<String, Object> analysisRequest = buildQuestionTypeRequest(userInput);
         
         logger.info("开始分析问题类型，用户输入: {}", userInput.substring(0, Math.min(100, userInput.length())));
-        logger.info("发送请求到AI服务: {}", aiForwardUrl);
         
-        return webClient.post()
-                .uri(aiForwardUrl)
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(analysisRequest)
-                .retrieve()
-                .bodyToMono(String.class)
+        return callCoalescer.coalesce("analyze", userInput, () -> callDispatcher.call(ModelCallDispatcher.Priority.INTERACTIVE,
+                modelCallGuard.generate(endpointRouter.hedged("analyze", endpoint -> webClient.post()
+                        .uri(endpoint.url(generatePath))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(analysisRequest)
+                        .retrieve()
+                        .bodyToMono(String.class)))))
                 .doOnSubscribe(subscription -> logger.info("开始订阅AI服务响应"))
                 .doOnNext(response -> logger.info("收到AI服务响应: {}", response))
                 .map(response -> {
@@ -115,19 +122,16 @@ public class AIApiService {
                             throw new RuntimeException("无法从AI服务响应中提取有效的问题类型");
                         }
                         
-                        // 清理问题类型，移除可能的额外字符
-                        questionType = questionType.trim().toUpperCase();
-                        logger.info("清理后的问题类型: {}", questionType);
-                        
-                        // 验证是否为有效的问题类型
-                        if (!isValidQuestionType(questionType)) {
+                        // 验证是否为有效的问题类型，并还原为标准写法（如 BookBorrowing）
+                        String canonicalType = canonicalQuestionType(questionType);
+                        if (canonicalType == null) {
                             logger.error("提取到无效的问题类型: {}", questionType);
                             throw new RuntimeException("AI服务返回的问题类型'" + questionType + "'不在允许的范围内");
                         }
                         
                         // 记录成功获取的问题类型
-                        logger.info("成功分析出问题类型: {}", questionType);
-                        return questionType;
+                        logger.info("成功分析出问题类型: {}", canonicalType);
+                        return canonicalType;
                     } catch (RuntimeException e) {
                         // 直接抛出运行时异常
                         throw e;
@@ -136,7 +140,6 @@ public class AIApiService {
                         throw new RuntimeException("处理AI服务响应时发生错误: " + e.getMessage(), e);
                     }
                 })
-                .timeout(Duration.ofSeconds(100))
                 .onErrorResume(error -> {
                     if (error instanceof java.util.concurrent.TimeoutException) {
                         logger.error("分析问题类型超时: {}", error.getMessage());
@@ -193,36 +196,107 @@ public class AIApiService {
     }
 
     /**
-     * 验证问题类型是否有效
+     * 返回问题类型的标准写法，忽略大小写匹配
+     * 
+     * <p>模型服务会把分类结果转为大写（如 BOOKBORROWING），这里统一还原为 {@link #QUESTION_TYPES} 中的写法</p>
      * 
      * @param questionType 问题类型
-     * @return 是否为有效类型
+     * @return 标准写法，不是有效类型时返回null
+     */
+    public static String canonicalQuestionType(String questionType) {
+        if (questionType == null) {
+            return null;
+        }
+        String trimmed = questionType.trim();
+        for (String validType : QUESTION_TYPES) {
+            if (validType.equalsIgnoreCase(trimmed)) {
+                return validType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 通过模型服务的分类专用接口 /analyze_type 分析问题类型
+     * 
+     * <p>该接口只生成少量token并直接返回 {"question_type": "..."}，比 {@link #analyzeQuestionType} 快</p>
+     * 
+     * @param userInput 用户输入
+     * @return 问题类型的Mono，接口失败或返回无效类型时以错误结束
      */
-    private boolean isValidQuestionType(String questionType) {
-        List<String> validTypes = Arrays.asList(
-            "GENERAL", "BOOK_SEARCH", "BOOK_RECOMMEND", "BOOK_REVIEW", 
-            "CODE_QUESTION", "MATH_PROBLEM", "WRITING_HELP", 
-            "BookBorrowing", "RULES", "POINTS"
+    public Mono<String> analyzeQuestionTypeByEndpoint(String userInput) {
+        return callCoalescer.coalesce("analyze_type", userInput, () -> callDispatcher.call(ModelCallDispatcher.Priority.INTERACTIVE,
+                modelCallGuard.lookup(endpointRouter.hedged("analyze_type", endpoint -> webClient.post()
+                        .uri(endpoint.url("/analyze_type"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(buildQuestionTypeRequest(userInput))
+                        .retrieve()
+                        .bodyToMono(String.class)))))
+                .map(response -> {
+                    String questionType;
+                    try {
+                        questionType = objectMapper.readTree(response).path("question_type").asText(null);
+                    } catch (Exception e) {
+                        throw new RuntimeException("解析问题分类响应失败: " + e.getMessage(), e);
+                    }
+                    String canonicalType = canonicalQuestionType(questionType);
+                    if (canonicalType == null) {
+                        throw new RuntimeException("分类接口返回的问题类型'" + questionType + "'不在允许的范围内");
+                    }
+                    logger.info("分类接口返回问题类型: {}", canonicalType);
+                    return canonicalType;
+                });
+    }
+
+    /**
+     * 构造问题分类请求，/generate 和 /analyze_type 使用相同的提示词
+     */
+    private static Map<String, Object> buildQuestionTypeRequest(String userInput) {
+        return Map.of(
+            "text", "你是一个专门负责对用户问题进行分类的AI助手。请分析以下用户输入，将其分类为以下类别之一：\n" +
+                    "1. GENERAL - 通用问答\n" +
+                    "2. BOOK_SEARCH - 图书查询\n" +
+                    "3. BOOK_RECOMMEND - 图书推荐\n" +
+                    "4. BOOK_REVIEW - 图书评论\n" +
+                    "5. CODE_QUESTION - 编程问题\n" +
+                    "6. MATH_PROBLEM - 数学问题\n" +
+                    "7. WRITING_HELP - 写作帮助\n" +
+                    "8. BookBorrowing - 图书借阅\n" +
+                    "9. RULES - 图书馆规则\n" +
+                    "10. POINTS - 图书馆积分\n\n" +
+                    "请仅返回类别代码，例如 BOOK_SEARCH，不要包含其他解释。\n\n" +
+                    "用户输入: " + userInput,
+            "system_prompt", "你是一个问题分类器。只输出分类结果，不要有任何其他内容。"
         );
-        return validTypes.contains(questionType);
     }
 
     /**
      * 处理聊天请求（返回流式响应）
      * 
+     * <p>上游字节流由 {@link SseEventDecoder} 在字节层面增量解码，每个订阅使用独立的解码器</p>
+     * 
      * @param requestBody 请求体
-     * @param dataHandler 处理每个数据块的函数
-     * @param completionHandler 请求完成时的处理函数
-     * @param errorHandler 错误处理函数
-     * @return Flux<String>，表示请求处理流程
+     * @return Flux<StreamEvent>，订阅后才发送请求
      */
-    public Flux<String> processChatStream(
-            Map<String, Object> requestBody,
-            Consumer<String> dataHandler,
-            Runnable completionHandler,
-            Consumer<Throwable> errorHandler) {
+    public Flux<StreamEvent> processChatStream(Map<String, Object> requestBody) {
+        return processChatStream(null, requestBody, ModelCallDispatcher.Priority.INTERACTIVE);
+    }
+
+    /**
+     * 处理会话中的聊天请求，同一会话优先发往上次使用的模型服务节点
+     *
+     * @param sessionId 会话ID，为空时不固定节点
+     * @param requestBody 请求体
+     * @return Flux<StreamEvent>，订阅后才发送请求
+     */
+    public Flux<StreamEvent> processChatStream(String sessionId, Map<String, Object> requestBody) {
+        return processChatStream(sessionId, requestBody, ModelCallDispatcher.Priority.INTERACTIVE);
+    }
+
+    private Flux<StreamEvent> processChatStream(String sessionId, Map<String, Object> requestBody,
+                                                ModelCallDispatcher.Priority priority) {
         
-        logger.info("发送AI流式请求到: {}", aiForwardUrl);
+        logger.info("发送AI流式请求: sessionId={}", sessionId);
         
         // 打印重要字段
         if (requestBody.containsKey("text")) {
@@ -244,83 +318,59 @@ public class AIApiService {
         
         logger.info("请求字段: {}", requestBody.keySet());
         
-        return webClient.post()
-                .uri(aiForwardUrl)
+        return Flux.defer(() -> {
+            SseEventDecoder decoder = new SseEventDecoder();
+            return callDispatcher.stream(priority, modelCallGuard.stream(endpointRouter.stream(sessionId, endpoint -> webClient.post()
+                .uri(endpoint.url(generatePath))
                 .contentType(MediaType.APPLICATION_JSON)
                 .bodyValue(requestBody)
                 .retrieve()
                 .onStatus(HttpStatusCode::is4xxClientError,
                     response -> {
                         logger.error("客户端错误: HTTP {}", response.statusCode());
-                        return Mono.error(new RuntimeException("API请求失败: " + response.statusCode()));
+                        return response.createException();
                     })
                 .onStatus(status -> status.is5xxServerError(),
                     response -> {
                         logger.error("服务器错误: HTTP {}", response.statusCode());
-                        return Mono.error(new RuntimeException("AI服务暂时不可用: " + response.statusCode()));
+                        return response.createException();
                     })
-                .bodyToFlux(DataBuffer.class)
-                .timeout(java.time.Duration.ofSeconds(600))
+                .bodyToFlux(DataBuffer.class))))
                 .onErrorResume(error -> {
                     logger.error("AI流式请求出错，使用后备响应: {}", error.getMessage());
-                    String fallbackResponse = "data: {\"type\":\"content\",\"data\":\"抱歉，AI服务暂时不可用，请稍后再试。\"}";
+                    String fallbackResponse = "data: {\"type\":\"content\",\"data\":\"" + FALLBACK_MESSAGE + "\"}";
                     byte[] bytes = fallbackResponse.getBytes(StandardCharsets.UTF_8);
                     return Flux.just(bufferFactory.wrap(bytes));
                 })
-                .map(buffer -> {
-                    String chunk = buffer.toString(StandardCharsets.UTF_8);
-                    DataBufferUtils.release(buffer);
-                    return chunk;
-                })
-                .doOnNext(dataHandler)
-                .doOnComplete(completionHandler)
-                .doOnError(errorHandler);
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .concatMapIterable(decoder::decode)
+                .concatWith(Flux.defer(() -> Flux.fromIterable(decoder.finish())));
+        });
     }
 
     /**
-     * 设置SSE发射器的处理流程
-     * 
-     * @param emitter SSE发射器
-     * @param requestBody API请求体
-     * @param chunkProcessor 处理每个数据块的函数
-     * @param completionHandler 请求完成时的处理函数
-     * @param errorHandler 错误处理函数
+     * 非流式生成：收集模型输出的正文，丢弃思考过程
+     *
+     * @param requestBody 请求体，与 {@link #processChatStream} 相同
+     * @return 正文，模型服务不可用或输出为空时以错误结束
      */
-    public void setupSseEmitter(
-            SseEmitter emitter,
-            Map<String, Object> requestBody,
-            Function<String, Void> chunkProcessor,
-            Runnable completionHandler,
-            Function<Throwable, Void> errorHandler) {
-        
-        // 设置SSE连接处理器
-        emitter.onCompletion(() -> logger.info("客户端断开连接"));
-        emitter.onTimeout(() -> logger.warn("SSE连接超时"));
-        emitter.onError(error -> logger.error("SSE连接错误: {}", error.getMessage()));
-        
-        // 处理流式响应
-        processChatStream(
-            requestBody,
-            chunk -> {
-                try {
-                    chunkProcessor.apply(chunk);
-                } catch (Exception e) {
-                    logger.error("处理数据块时出错: {}", e.getMessage());
-                }
-            },
-            completionHandler,
-            error -> {
-                try {
-                    errorHandler.apply(error);
-                } catch (Exception e) {
-                    logger.error("处理错误时出错: {}", e.getMessage());
-                }
-            }
-        ).subscribe();
+    public Mono<String> generateText(Map<String, Object> requestBody) {
+        return callCoalescer.coalesce("generate_text", requestBody,
+                () -> processChatStream(null, requestBody, ModelCallDispatcher.Priority.BACKGROUND)
+                .takeWhile(event -> event.getType() != StreamEvent.Type.END)
+                .filter(event -> event.getType() == StreamEvent.Type.CONTENT)
+                .map(StreamEvent::getData)
+                .collect(Collectors.joining())
+                .flatMap(text -> {
+                    if (text.isBlank() || text.contains(FALLBACK_MESSAGE)) {
+                        return Mono.error(new RuntimeException("AI服务未返回有效内容"));
+                    }
+                    return Mono.just(text.trim());
+                }));
     }
 
     /**
-     * 执行自定义AI请求
+     * 执行自定义AI请求，按后台优先级分配并发名额
      * 
      * @param requestBody 请求体
      * @return 原始响应文本
@@ -328,13 +378,14 @@ public class AIApiService {
     public String executeCustomRequest(Map<String, Object> requestBody) {
         logger.info("执行自定义AI请求");
         try {
-            return webClient.post()
-                .uri(aiForwardUrl)
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block(java.time.Duration.ofSeconds(30));
+            return callCoalescer.coalesce("generate", requestBody, () -> callDispatcher.call(ModelCallDispatcher.Priority.BACKGROUND,
+                    modelCallGuard.generate(endpointRouter.call(endpoint -> webClient.post()
+                            .uri(endpoint.url(generatePath))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(requestBody)
+                            .retrieve()
+                            .bodyToMono(String.class)))))
+                .block();
         } catch (Exception e) {
             logger.error("执行自定义AI请求失败", e);
             return "{\"error\": \"" + e.getMessage().replace("\"", "'") + "\"}";
@@ -420,8 +471,7 @@ public class AIApiService {
      */
     public Map<String, Object> searchSimilarBooks(String query, int limit) {
         try {
-            String url = aiApiBase + "/search";
-            logger.info("发送向量搜索请求到: {}", url);
+            logger.info("发送向量搜索请求");
             logger.info("查询内容: {}", query);
             logger.info("限制数量: {}", limit);
             
@@ -431,13 +481,14 @@ public class AIApiService {
             requestBody.put("limit", limit);
             
             // 使用WebClient发送请求
-            String responseJson = webClient.post()
-                .uri(url)
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block(java.time.Duration.ofSeconds(30));
+            String responseJson = callCoalescer.coalesce("search", requestBody, () -> callDispatcher.call(ModelCallDispatcher.Priority.BACKGROUND,
+                    modelCallGuard.lookup(endpointRouter.hedged("search", endpoint -> webClient.post()
+                            .uri(endpoint.url("/search"))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(requestBody)
+                            .retrieve()
+                            .bodyToMono(String.class)))))
+                .block();
             
             if (responseJson == null) {
                 logger.error("向量搜索返回空结果");
@@ -0,0 +1,140 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.example.backendai.util.Fnv1a;
+import org.example.backendai.util.TextNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * 固定规则类问题的回答缓存
+ *
+ * <p>RULES、POINTS、BookBorrowing 类问题的回答依据提示词模板中的规章文本和用户的年级、专业，
+ * 年级、专业相同的用户问同一问题时生成的回答没有区别。回答按以下内容缓存，长文本只保存指纹（见 {@link Fnv1a}）：</p>
+ * <ul>
+ *   <li>问题类型</li>
+ *   <li>实际发送的系统提示词指纹：模板内容或条款选取配置（chat.prompt.clause.*）改变后旧回答不再命中，随过期时间淘汰</li>
+ *   <li>用户身份信息（年级、专业）指纹：不同年级的借阅规则不同，只在身份信息相同的用户之间共用回答</li>
+ *   <li>归一化后的问题文本（见 {@link TextNormalizer}）：只差标点、空白、大小写等的问题视为同一问题，
+ *       "借书期限"和"还书期限"这类不同问题不会互相命中</li>
+ * </ul>
+ *
+ * <p>提示词中带有会话摘要或其他会话的历史消息时，回答与用户个人的对话内容有关，调用方不应查询或写入缓存。</p>
+ */
+@Service
+public class AnswerCacheService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnswerCacheService.class);
+
+    private static final String ANSWER_CACHE_METRIC = "chat.answer_cache.requests";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.answer-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.answer-cache.question-types:RULES,POINTS,BookBorrowing}")
+    private Set<String> questionTypes;
+
+    @Value("${chat.answer-cache.max-size:2000}")
+    private long maxSize;
+
+    @Value("${chat.answer-cache.ttl-hours:24}")
+    private long ttlHours;
+
+    private Cache<AnswerKey, String> answers;
+
+    /**
+     * 缓存键
+     */
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class AnswerKey {
+        private final String questionType;
+        private final long promptFingerprint;
+        private final long profileFingerprint;
+        private final String normalizedQuestion;
+    }
+
+    @PostConstruct
+    public void init() {
+        answers = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofHours(ttlHours))
+                .build();
+        Gauge.builder("chat.answer_cache.size", answers, Cache::estimatedSize).register(meterRegistry);
+        logger.info("回答缓存已{}，缓存的问题类型: {}", enabled ? "开启" : "关闭", questionTypes);
+    }
+
+    /**
+     * 该类型问题的回答是否可以缓存
+     */
+    public boolean isCacheable(String questionType) {
+        return enabled && questionType != null && questionTypes.contains(questionType);
+    }
+
+    /**
+     * 查找相同问题的缓存回答
+     *
+     * @param questionType 问题类型
+     * @param systemPrompt 发送给模型的系统提示词
+     * @param userProfile 加在系统提示词前的用户身份信息，没有时为空字符串
+     * @param question 用户输入
+     * @return 缓存的回答，未命中时返回null
+     */
+    public String lookup(String questionType, String systemPrompt, String userProfile, String question) {
+        if (!isCacheable(questionType)) {
+            return null;
+        }
+        AnswerKey key = keyOf(questionType, systemPrompt, userProfile, question);
+        String answer = answers.getIfPresent(key);
+        if (answer != null) {
+            record("hit");
+            return answer;
+        }
+        record("miss");
+        return null;
+    }
+
+    /**
+     * 缓存完整生成的回答
+     *
+     * @param questionType 问题类型
+     * @param systemPrompt 生成回答时发送给模型的系统提示词
+     * @param userProfile 生成回答时加在系统提示词前的用户身份信息，没有时为空字符串
+     * @param question 用户输入
+     * @param answer 发送给用户的正文，不含思考过程
+     */
+    public void store(String questionType, String systemPrompt, String userProfile, String question, String answer) {
+        if (!isCacheable(questionType) || answer == null || answer.isBlank()
+                || answer.contains(AIApiService.FALLBACK_MESSAGE)) {
+            return;
+        }
+        answers.put(keyOf(questionType, systemPrompt, userProfile, question), answer);
+        logger.info("已缓存{}类问题的回答，长度{}", questionType, answer.length());
+    }
+
+    private AnswerKey keyOf(String questionType, String systemPrompt, String userProfile, String question) {
+        return new AnswerKey(questionType,
+                Fnv1a.hash64(systemPrompt != null ? systemPrompt : ""),
+                Fnv1a.hash64(userProfile != null ? userProfile : ""),
+                TextNormalizer.normalize(question));
+    }
+
+    private void record(String result) {
+        meterRegistry.counter(ANSWER_CACHE_METRIC, "result", result).increment();
+    }
+}
@@ -0,0 +1,112 @@
+package org.example.backendai.service;
+
+import org.example.backendai.DTO.BookDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按书名批量查询馆藏书籍
+ *
+ * <p>回答中提到的所有书名在一条SQL中查询：每个书名一个 {@code title LIKE} 子查询取评分最高的一本，
+ * 用 UNION ALL 合并，一次数据库往返得到全部结果。</p>
+ */
+@Service
+public class BookLookupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookLookupService.class);
+
+    private static final String TITLE_QUERY = "(SELECT ? AS query_title, id, title, pingfen AS rating, " +
+            "chubanshe AS publisher, neirong_jianjie AS description, zuozhe_jianjie AS author, " +
+            "chubannian AS publishYear, num AS quantity " +
+            "FROM tushu WHERE title LIKE ? ESCAPE '!' ORDER BY pingfen DESC LIMIT 1)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * 一次查询的最多书名数，超出的书名不查询
+     */
+    @Value("${chat.book-lookup.max-titles:20}")
+    private int maxTitles;
+
+    public int getMaxTitles() {
+        return maxTitles;
+    }
+
+    /**
+     * 查询书名对应的馆藏书籍，标题包含该书名的书中取评分最高的一本
+     *
+     * @param titles 书名，不含书名号
+     * @return 书名 -> 书籍，按输入顺序，未收录的书名不在结果中
+     */
+    public Map<String, BookDTO> findByTitles(Collection<String> titles) {
+        List<String> queryTitles = new ArrayList<>();
+        for (String title : new LinkedHashSet<>(titles)) {
+            if (title != null && !title.isBlank() && queryTitles.size() < maxTitles) {
+                queryTitles.add(title);
+            }
+        }
+        if (queryTitles.isEmpty()) {
+            return Map.of();
+        }
+        if (queryTitles.size() < titles.size()) {
+            logger.warn("书名数量{}超过单次查询上限{}，只查询前{}个", titles.size(), maxTitles, maxTitles);
+        }
+
+        StringBuilder sql = new StringBuilder();
+        Object[] args = new Object[queryTitles.size() * 2];
+        for (int i = 0; i < queryTitles.size(); i++) {
+            if (i > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append(TITLE_QUERY);
+            args[i * 2] = queryTitles.get(i);
+            args[i * 2 + 1] = "%" + escapeLike(queryTitles.get(i)) + "%";
+        }
+
+        Map<String, BookDTO> found = new LinkedHashMap<>();
+        jdbcTemplate.query(sql.toString(), rs -> {
+            BookDTO book = new BookDTO();
+            book.setId(rs.getLong("id"));
+            book.setTitle(rs.getString("title"));
+            double rating = rs.getDouble("rating");
+            book.setRating(rs.wasNull() ? null : rating);
+            book.setPublisher(rs.getString("publisher"));
+            book.setDescription(rs.getString("description"));
+            book.setAuthor(rs.getString("author"));
+            book.setPublishYear(rs.getString("publishYear"));
+            int quantity = rs.getInt("quantity");
+            book.setQuantity(rs.wasNull() ? null : quantity);
+            found.put(rs.getString("query_title"), book);
+        }, args);
+
+        // 按输入顺序返回
+        Map<String, BookDTO> ordered = new LinkedHashMap<>();
+        for (String title : queryTitles) {
+            BookDTO book = found.get(title);
+            if (book != null) {
+                ordered.put(title, book);
+            }
+        }
+        logger.info("批量查询{}个书名，{}个在馆藏中找到", queryTitles.size(), ordered.size());
+        return ordered;
+    }
+
+    /**
+     * 转义LIKE通配符，书名中的 % 和 _ 按字面匹配
+     */
+    private static String escapeLike(String text) {
+        return text.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
@@ -14,12 +14,44 @@ public interface ChatMessageService {
      * 添加聊天消息
      */
     ChatMessageDTO addMessage(String sessionId, Long userId, String role, String content);
+
+    /**
+     * 创建一条内容为空的消息，之后用 {@link #appendContent} 分段写入内容，
+     * 用于边生成边保存的AI回复。调用方负责校验会话访问权限
+     *
+     * @return 新消息，tokenCount 随追加累计
+     */
+    ChatMessageDTO startMessage(String sessionId, Long userId, String role);
+
+    /**
+     * 在 {@link #startMessage} 创建的消息末尾追加一段内容
+     */
+    void appendContent(ChatMessageDTO message, String segment);
+
+    /**
+     * 分段写入结束，更新token数、会话预览和会话缓存
+     *
+     * @param message {@link #startMessage} 创建的消息
+     * @param userId 用户ID
+     * @param content 消息内容，过长时为开头部分，只用于预览和缓存，不再写入
+     */
+    void finishMessage(ChatMessageDTO message, Long userId, String content);
     
     /**
      * 获取会话的消息列表
      */
     List<ChatMessageDTO> getSessionMessages(String sessionId, Long userId);
 
+    /**
+     * 获取会话最近的若干条消息，按时间升序，活跃会话从缓存读取
+     *
+     * @param sessionId 会话ID
+     * @param userId 用户ID
+     * @param limit 最多返回的消息数
+     * @return 消息列表，会话不存在或无权访问时返回null
+     */
+    List<ChatMessageDTO> getRecentMessages(String sessionId, Long userId, int limit);
+
     /**
      * 获取用户的所有聊天消息
      * 
@@ -0,0 +1,431 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.example.backendai.entity.ChatMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 聊天消息的写入
+ *
+ * <p>WRITE_BEHIND 模式下写操作先进入有界队列，由后台线程按顺序批量写入，每批在一个事务中依次执行：</p>
+ * <ul>
+ *   <li>新消息：一次JDBC批量插入</li>
+ *   <li>分段追加的内容：同一条消息的多段合并为一次 {@code CONCAT} 更新</li>
+ *   <li>分段写入完成的消息：更新token数</li>
+ *   <li>会话的最后一条消息预览：每个会话只更新一次</li>
+ * </ul>
+ *
+ * <p>请求线程不再等待数据库。队列满时调用线程先按顺序写完队列中的操作再写入本次操作，
+ * 不丢消息也不打乱顺序（追加内容不会早于消息本身写入）；进程正常退出时写完队列中剩余的操作，
+ * 进程崩溃时最多丢失尚未写入的一批。SYNC 模式在调用线程直接写入，方法返回时已经持久化。</p>
+ *
+ * <p>尚未写入的新消息可以通过 {@link #pending(String)} 读取，查询会话消息时与数据库结果合并。</p>
+ */
+@Service
+public class ChatMessageWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatMessageWriter.class);
+
+    private static final String INSERT_SQL = "INSERT INTO chat_message " +
+            "(id, session_id, user_id, role, content, create_time, token_count) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String APPEND_SQL = "UPDATE chat_message SET content = CONCAT(content, ?) WHERE id = ?";
+
+    private static final String TOKEN_COUNT_SQL = "UPDATE chat_message SET token_count = ? WHERE id = ?";
+
+    private static final String PREVIEW_SQL = "UPDATE chat_session SET last_message_preview = ? WHERE id = ?";
+
+    private static final String FAILURE_METRIC = "chat.persistence.failures";
+
+    /**
+     * 写入模式
+     */
+    public enum Mode {
+        SYNC,         // 调用线程同步写入
+        WRITE_BEHIND  // 后台批量写入
+    }
+
+    /**
+     * 一次写操作
+     */
+    private static class Write {
+        private final ChatMessage insert;
+        private final String messageId;
+        private final String sessionId;
+        private final String appendContent;
+        private final Integer tokenCount;
+        private final String preview;
+
+        private Write(ChatMessage insert, String messageId, String sessionId,
+                      String appendContent, Integer tokenCount, String preview) {
+            this.insert = insert;
+            this.messageId = messageId;
+            this.sessionId = sessionId;
+            this.appendContent = appendContent;
+            this.tokenCount = tokenCount;
+            this.preview = preview;
+        }
+    }
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.persistence.mode:WRITE_BEHIND}")
+    private Mode mode;
+
+    @Value("${chat.persistence.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${chat.persistence.batch-size:200}")
+    private int batchSize;
+
+    @Value("${chat.persistence.shutdown-timeout-seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    private BlockingQueue<Write> queue;
+
+    /**
+     * 正在写入的一批操作，在操作离开队列之前发布
+     */
+    private volatile List<Write> writing = List.of();
+
+    private volatile boolean running;
+
+    /**
+     * 后台线程和队列满时的调用线程互斥写入，保证操作按进入队列的顺序写入
+     */
+    private final Object flushLock = new Object();
+
+    private Thread flusher;
+
+    private Timer flushTimer;
+
+    @PostConstruct
+    public void init() {
+        flushTimer = Timer.builder("chat.persistence.flush").register(meterRegistry);
+        if (mode != Mode.WRITE_BEHIND) {
+            logger.info("聊天消息同步写入");
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        Gauge.builder("chat.persistence.queue.size", queue, BlockingQueue::size).register(meterRegistry);
+        running = true;
+        flusher = new Thread(this::run, "chat-message-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("聊天消息后台批量写入，队列容量{}，每批最多{}条", queueCapacity, batchSize);
+    }
+
+    /**
+     * 写入一条新消息，内容为空时不更新会话预览
+     *
+     * @throws RuntimeException 同步写入失败时
+     */
+    public void write(ChatMessage message) {
+        String preview = message.getContent() == null || message.getContent().isEmpty()
+                ? null : preview(message.getContent());
+        submit(new Write(message, message.getId(), message.getSessionId(), null, null, preview));
+    }
+
+    /**
+     * 在已写入的消息末尾追加内容
+     */
+    public void append(String sessionId, String messageId, String content) {
+        submit(new Write(null, messageId, sessionId, content, null, null));
+    }
+
+    /**
+     * 分段写入完成，更新消息的token数和会话预览
+     *
+     * @param content 消息内容或其开头部分，用于生成预览
+     */
+    public void finish(String sessionId, String messageId, int tokenCount, String content) {
+        submit(new Write(null, messageId, sessionId, null, tokenCount, preview(content)));
+    }
+
+    private void submit(Write write) {
+        if (mode == Mode.WRITE_BEHIND && running) {
+            if (queue.offer(write)) {
+                LockSupport.unpark(flusher);
+            } else {
+                flushThrough(write);
+            }
+            return;
+        }
+        flushTimer.record(() -> writeBatch(List.of(write)));
+    }
+
+    /**
+     * 队列已满：等后台线程写完当前一批，在调用线程按顺序写完队列中的操作，最后写入本次操作
+     */
+    private void flushThrough(Write write) {
+        synchronized (flushLock) {
+            if (queue.offer(write)) {
+                return;
+            }
+            logger.warn("消息写入队列已满，在调用线程按顺序写入队列中的操作: sessionId={}", write.sessionId);
+            meterRegistry.counter("chat.persistence.overflow").increment();
+            List<Write> remaining = new ArrayList<>(queue.size() + 1);
+            handOff(remaining, Integer.MAX_VALUE, write);
+            try {
+                for (int from = 0; from < remaining.size(); from += batchSize) {
+                    List<Write> batch = remaining.subList(from, Math.min(from + batchSize, remaining.size()));
+                    flushTimer.record(() -> flush(batch));
+                }
+            } finally {
+                writing = List.of();
+            }
+        }
+    }
+
+    /**
+     * 把队列头部最多 max 个操作交给写入方：先发布到 writing 再移出队列，
+     * 操作在任何时刻都至少位于队列或 writing 之一。调用方需持有 flushLock，队列只在锁内移出。
+     *
+     * @param batch 接收取出的操作
+     * @param extra 排在最后一起写入的操作，没有时为null
+     */
+    private void handOff(List<Write> batch, int max, Write extra) {
+        for (Write write : queue) {
+            if (batch.size() >= max) {
+                break;
+            }
+            batch.add(write);
+        }
+        int taken = batch.size();
+        if (extra != null) {
+            batch.add(extra);
+        }
+        writing = List.copyOf(batch);
+        for (int i = 0; i < taken; i++) {
+            queue.poll();
+        }
+    }
+
+    /**
+     * 会话中尚未写入数据库的新消息，按写入顺序，内容包含尚未写入的追加内容
+     *
+     * <p>先读取本方法再查询数据库：消息在两次读取之间写入时会在两边都出现，由调用方按ID去重，不会两边都缺失。
+     * 先读队列再读 writing：操作先发布到 writing 再离开队列，两次读取之间被取走的操作能在 writing 中读到，
+     * 同时出现在两处的操作只计一次。</p>
+     */
+    public List<ChatMessage> pending(String sessionId) {
+        if (queue == null) {
+            return List.of();
+        }
+        List<Write> queued = new ArrayList<>();
+        for (Write write : queue) {
+            if (sessionId.equals(write.sessionId)) {
+                queued.add(write);
+            }
+        }
+        Set<Write> writes = new LinkedHashSet<>();
+        for (Write write : writing) {
+            if (sessionId.equals(write.sessionId)) {
+                writes.add(write);
+            }
+        }
+        writes.addAll(queued);
+
+        Map<String, ChatMessage> pending = new LinkedHashMap<>();
+        for (Write write : writes) {
+            if (write.insert != null) {
+                pending.put(write.messageId, write.insert);
+            } else if (write.appendContent != null) {
+                pending.computeIfPresent(write.messageId, (id, message) -> message.toBuilder()
+                        .content(message.getContent() + write.appendContent)
+                        .build());
+            }
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            if (queue.isEmpty()) {
+                // 新操作进入队列时唤醒
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                // 取出和写入在同一个锁内，队列满时调用线程写入的操作不会早于这里已取出的操作
+                synchronized (flushLock) {
+                    handOff(batch, batchSize, null);
+                    if (!batch.isEmpty()) {
+                        flushTimer.record(() -> flush(batch));
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.error("批量写入消息时发生错误: {}", e.getMessage());
+            } finally {
+                writing = List.of();
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 批量写入，失败时逐条重试，仍然失败的操作记录后丢弃（如会话已被删除）
+     */
+    private void flush(List<Write> batch) {
+        try {
+            writeBatch(batch);
+            logger.debug("批量写入{}个操作", batch.size());
+        } catch (RuntimeException e) {
+            logger.warn("批量写入{}个操作失败，逐条重试: {}", batch.size(), e.getMessage());
+            for (Write write : batch) {
+                try {
+                    writeBatch(List.of(write));
+                } catch (RuntimeException single) {
+                    logger.error("写入消息失败，已丢弃: id={}, sessionId={}, error={}",
+                            write.messageId, write.sessionId, single.getMessage());
+                    meterRegistry.counter(FAILURE_METRIC).increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * 在一个事务中执行一批操作，同一条消息的追加内容和同一会话的预览各合并为一次更新
+     */
+    private void writeBatch(List<Write> batch) {
+        List<ChatMessage> inserts = new ArrayList<>();
+        Map<String, StringBuilder> appends = new LinkedHashMap<>();
+        Map<String, Integer> tokenCounts = new LinkedHashMap<>();
+        Map<String, String> previews = new LinkedHashMap<>();
+        for (Write write : batch) {
+            if (write.insert != null) {
+                inserts.add(write.insert);
+            }
+            if (write.appendContent != null) {
+                appends.computeIfAbsent(write.messageId, id -> new StringBuilder()).append(write.appendContent);
+            }
+            if (write.tokenCount != null) {
+                tokenCounts.put(write.messageId, write.tokenCount);
+            }
+            if (write.preview != null) {
+                previews.put(write.sessionId, write.preview);
+            }
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!inserts.isEmpty()) {
+                jdbcTemplate.batchUpdate(INSERT_SQL, inserts, inserts.size(), (ps, message) -> {
+                    ps.setString(1, message.getId());
+                    ps.setString(2, message.getSessionId());
+                    if (message.getUserId() != null) {
+                        ps.setLong(3, message.getUserId());
+                    } else {
+                        ps.setNull(3, Types.BIGINT);
+                    }
+                    ps.setString(4, message.getRole());
+                    ps.setString(5, message.getContent());
+                    ps.setTimestamp(6, new Timestamp(message.getCreateTime().getTime()));
+                    if (message.getTokenCount() != null) {
+                        ps.setInt(7, message.getTokenCount());
+                    } else {
+                        ps.setNull(7, Types.INTEGER);
+                    }
+                });
+            }
+            batchUpdate(APPEND_SQL, appends, (ps, append) -> {
+                ps.setString(1, append.getValue().toString());
+                ps.setString(2, append.getKey());
+            });
+            batchUpdate(TOKEN_COUNT_SQL, tokenCounts, (ps, tokenCount) -> {
+                ps.setInt(1, tokenCount.getValue());
+                ps.setString(2, tokenCount.getKey());
+            });
+            batchUpdate(PREVIEW_SQL, previews, (ps, preview) -> {
+                ps.setString(1, preview.getValue());
+                ps.setString(2, preview.getKey());
+            });
+        });
+    }
+
+    private <V> void batchUpdate(String sql, Map<String, V> updates,
+                                 ParameterizedPreparedStatementSetter<Map.Entry<String, V>> setter) {
+        if (!updates.isEmpty()) {
+            List<Map.Entry<String, V>> entries = new ArrayList<>(updates.entrySet());
+            jdbcTemplate.batchUpdate(sql, entries, entries.size(), setter);
+        }
+    }
+
+    /**
+     * 会话列表中显示的消息预览
+     */
+    private static String preview(String content) {
+        if (content == null) {
+            return null;
+        }
+        return content.length() > 50 ? content.substring(0, 47) + "..." : content;
+    }
+
+    /**
+     * 停止接收并写完队列中剩余的操作
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(shutdownTimeoutSeconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive()) {
+            logger.error("消息写入线程未在{}秒内结束，队列中剩余{}个操作未写入", shutdownTimeoutSeconds, queue.size());
+            return;
+        }
+        // 停止前最后一刻进入队列的操作
+        synchronized (flushLock) {
+            List<Write> remaining = new ArrayList<>();
+            handOff(remaining, Integer.MAX_VALUE, null);
+            try {
+                if (!remaining.isEmpty()) {
+                    flush(remaining);
+                }
+            } finally {
+                writing = List.of();
+            }
+        }
+        logger.info("消息写入队列已清空");
+    }
+}
@@ -0,0 +1,1156 @@
+package org.example.backendai.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.backendai.DTO.BookDTO;
+import org.example.backendai.DTO.ChatMessageDTO;
+import org.example.backendai.DTO.ChatSessionDTO;
+import org.example.backendai.DTO.ChatStreamContext;
+import org.example.backendai.DTO.StreamEvent;
+import org.example.backendai.entity.User;
+import org.example.backendai.util.ContextPacker;
+import org.example.backendai.util.JwtUtil;
+import org.example.backendai.util.SseCoalescer;
+import org.example.backendai.util.TokenEstimator;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * 流式对话管道
+ *
+ * <p>把一次对话请求组合成一条 {@code Flux<ServerSentEvent<Object>>}：</p>
+ * <ol>
+ *   <li>校验令牌、准备会话、保存用户消息并读取历史（阻塞操作，运行在 boundedElastic 上）</li>
+ *   <li>分析问题类型，选择提示词模板，构造模型请求；固定规则类问题命中回答缓存时直接重放缓存</li>
+ *   <li>转发上游模型流中的正文，同时识别书名</li>
+ *   <li>书籍类问题在正文结束后查询馆藏并追加书籍摘要</li>
+ *   <li>发送完成事件和 [DONE]，保存AI回复</li>
+ * </ol>
+ *
+ * <p>任何一步出错都转换为 error 事件加 [DONE]，流本身正常结束。最后经过 {@link SseCoalescer}
+ * 合并正文事件，减少写出次数。
+ * 响应式端点直接返回该流，SseEmitter 端点订阅同一条流并逐个转发事件。</p>
+ */
+@Service
+public class ChatStreamService {
+
+    private final Logger logger = LoggerFactory.getLogger(ChatStreamService.class);
+
+    /**
+     * 截断旧消息时至少保留的token数，剩余预算更少时直接丢弃该消息
+     */
+    private static final int MIN_PARTIAL_MESSAGE_TOKENS = 64;
+
+    /**
+     * 生成过程中被取消的上游流数量
+     */
+    private static final String CANCELLED_STREAMS_METRIC = "chat.stream.cancelled";
+
+    /**
+     * 重放缓存回答时每个正文事件的字符数
+     */
+    private static final int REPLAY_CHUNK_CHARS = 32;
+
+    /**
+     * 最多读取的历史消息数量，实际发送的消息数再由token预算决定
+     */
+    @Value("${chat.context.max-messages:20}")
+    private int maxHistoryMessages;
+
+    /**
+     * 系统提示词和历史消息合计的token预算
+     */
+    @Value("${chat.context.token-budget:3072}")
+    private int contextTokenBudget;
+
+    /**
+     * 生成回答的最大长度
+     */
+    @Value("${chat.context.max-length:2000}")
+    private int maxLength;
+
+    /**
+     * AI回复积累到该字符数时追加写入数据库
+     */
+    @Value("${chat.checkpoint.segment-chars:2048}")
+    private int checkpointSegmentChars;
+
+    /**
+     * AI回复在内存中保留的最大字符数，用于会话预览和会话缓存，完整内容只在数据库中
+     */
+    @Value("${chat.checkpoint.retain-chars:16384}")
+    private int retainedContentChars;
+
+    @Autowired
+    private ChatSessionService chatSessionService;
+
+    @Autowired
+    private ChatMessageService chatMessageService;
+
+    @Autowired
+    private SessionSummaryService sessionSummaryService;
+
+    @Autowired
+    private UserMemoryService userMemoryService;
+
+    @Autowired
+    private BookLookupService bookLookupService;
+
+    /**
+     * 书籍类问题是否在生成过程中查询书名
+     */
+    @Value("${chat.book-lookup.inline:true}")
+    private boolean inlineBookLookup;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private AIApiService aiApiService;
+
+    @Autowired
+    private PromptTemplateService promptTemplateService;
+
+    @Autowired
+    private QuestionTypeService questionTypeService;
+
+    @Autowired
+    private AnswerCacheService answerCacheService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 输出阶段，合并正文事件并处理慢客户端
+     */
+    @Autowired
+    private SseCoalescer outputStage;
+
+    /**
+     * 已完成的对话流，防止重复保存回复
+     */
+    @Autowired
+    private CompletionRegistry completionRegistry;
+
+    /**
+     * 校验后的对话请求
+     */
+    private static class ChatRequest {
+        private final Long userId;
+        private final String cleanToken;
+        /**
+         * 会话ID，为null时需要创建新会话
+         */
+        private final String sessionId;
+        private final String question;
+        private final long startTime = System.currentTimeMillis();
+
+        private ChatRequest(Long userId, String cleanToken, String sessionId, String question) {
+            this.userId = userId;
+            this.cleanToken = cleanToken;
+            this.sessionId = sessionId;
+            this.question = question;
+        }
+    }
+
+    /**
+     * 一轮对话在调用模型前准备好的数据
+     */
+    private static class ChatTurn {
+        private final ChatStreamContext context;
+        private final List<ChatMessageDTO> history;
+        private final String userInfo;
+        private final String summary;
+        private final String memory;
+
+        private ChatTurn(ChatStreamContext context, List<ChatMessageDTO> history, String userInfo,
+                         String summary, String memory) {
+            this.context = context;
+            this.history = history;
+            this.userInfo = userInfo;
+            this.summary = summary;
+            this.memory = memory;
+        }
+    }
+
+    /**
+     * 处理一次对话请求
+     *
+     * @param token 授权头（Bearer token）
+     * @param sessionId 会话ID，为空时创建新会话
+     * @param messageContent 消息内容，可以是纯文本或 {"content": "..."}
+     * @return 发送给客户端的事件流，订阅后才开始处理
+     */
+    public Flux<ServerSentEvent<Object>> streamChat(String token, String sessionId, String messageContent) {
+        // 记录原始请求内容
+        logger.info("接收到对话请求。会话ID: {}, 消息内容: {}",
+                sessionId,
+                messageContent != null ?
+                    (messageContent.length() > 100 ? messageContent.substring(0, 100) + "..." : messageContent)
+                    : "null");
+
+        return Mono.fromCallable(() -> parseRequest(token, sessionId, messageContent))
+                .flatMap(this::prepareTurn)
+                .flatMapMany(this::generate)
+                .onErrorResume(this::errorEvents)
+                .transform(outputStage);
+    }
+
+    /**
+     * 校验令牌和消息内容，不访问数据库
+     */
+    private ChatRequest parseRequest(String token, String sessionId, String messageContent) {
+        // 获取用户ID
+        if (token == null || !token.startsWith("Bearer ")) {
+            throw new IllegalArgumentException("缺少授权令牌");
+        }
+        String cleanToken = token.substring(7);
+        Long userId = jwtUtil.getUserIdFromToken(cleanToken);
+        if (userId == null) {
+            throw new IllegalArgumentException("无效的授权令牌");
+        }
+
+        // 处理消息内容 - 确保有有效内容
+        if (messageContent == null || messageContent.trim().isEmpty()) {
+            logger.error("处理对话请求失败：消息内容为空");
+            throw new IllegalArgumentException("消息内容不能为空");
+        }
+        String question = extractMessageContent(messageContent.trim()).trim();
+        logger.info("处理对话，当前用户输入: {}",
+                question.length() > 100 ? question.substring(0, 100) + "..." : question);
+
+        boolean newSession = sessionId == null || sessionId.trim().isEmpty();
+        return new ChatRequest(userId, cleanToken, newSession ? null : sessionId, question);
+    }
+
+    /**
+     * 并行执行调用模型前的准备工作：问题分类、用户消息入库、历史消息读取和用户信息查询同时进行，
+     * 全部完成后汇合。数据库操作运行在 boundedElastic 上。
+     *
+     * <p>历史消息与用户消息入库并行读取，读到的结果可能不包含本次消息，
+     * 汇合时按消息ID去重后再把本次消息追加到末尾。</p>
+     */
+    private Mono<ChatTurn> prepareTurn(ChatRequest request) {
+        // 会话只创建一次，入库依赖会话ID
+        Mono<String> session = resolveSession(request).cache();
+
+        // 分析问题类型 - 使用最新的用户输入而不是历史消息
+        Mono<String> questionType = classifyQuestion(request.question);
+
+        Mono<Optional<ChatMessageDTO>> savedMessage = session.flatMap(sessionId -> blocking(() -> {
+            logger.info("保存用户消息到会话: sessionId={}, userId={}, content={}",
+                    sessionId, request.userId,
+                    request.question.length() > 50 ? request.question.substring(0, 50) + "..." : request.question);
+            ChatMessageDTO saved = chatMessageService.addMessage(sessionId, request.userId, "user", request.question);
+            if (saved == null) {
+                logger.warn("保存用户消息失败: sessionId={}", sessionId);
+            }
+            return Optional.ofNullable(saved);
+        }));
+
+        // 新会话没有历史消息
+        Mono<List<ChatMessageDTO>> history = request.sessionId == null
+                ? Mono.just(Collections.emptyList())
+                : blocking(() -> chatMessageService.getRecentMessages(request.sessionId, request.userId, maxHistoryMessages))
+                        .switchIfEmpty(Mono.defer(() -> {
+                            logger.error("处理对话请求失败：无法获取会话消息，会话ID={}, 用户ID={}",
+                                    request.sessionId, request.userId);
+                            return Mono.error(new IllegalArgumentException("会话不存在或您没有访问权限"));
+                        }))
+                        .cache();
+
+        Mono<String> userInfo = blocking(() -> lookupUserInfo(request.cleanToken));
+
+        // 长会话较早的对话由摘要代替；读取历史消息时已缓存会话窗口，摘要从窗口中读取
+        Mono<Optional<SessionSummaryService.Summary>> summary = request.sessionId == null
+                ? Mono.just(Optional.empty())
+                : history.flatMap(messages -> blocking(() ->
+                        Optional.ofNullable(sessionSummaryService.getSummary(request.sessionId, request.userId))));
+
+        // 其他会话中的相关历史消息，检索时排除当前会话
+        Mono<Optional<String>> memory = session.flatMap(sessionId ->
+                blocking(() -> Optional.ofNullable(userMemoryService.recall(request.userId, sessionId, request.question))));
+
+        return Mono.zip(session, questionType, savedMessage, history, userInfo, summary, memory)
+                .map(tuple -> {
+                    ChatStreamContext context = new ChatStreamContext(tuple.getT1(), request.userId, request.startTime);
+                    context.setQuestionType(tuple.getT2());
+                    context.setQuestion(request.question);
+                    context.setRetainLimit(retainedContentChars);
+                    List<ChatMessageDTO> messages = appendCurrentMessage(tuple.getT4(), tuple.getT3().orElse(null), request.question);
+                    SessionSummaryService.Summary sessionSummary = tuple.getT6().orElse(null);
+                    if (sessionSummary != null) {
+                        messages = dropSummarized(messages, sessionSummary);
+                    }
+                    logger.info("对话准备完成，耗时{}ms，会话 {} 使用 {} 条历史消息进行AI对话{}",
+                            context.getElapsedMillis(), context.getSessionId(), messages.size(),
+                            sessionSummary != null ? "，较早的对话使用摘要" : "");
+                    return new ChatTurn(context, messages, tuple.getT5(),
+                            sessionSummary != null ? sessionSummary.getText() : null, tuple.getT7().orElse(null));
+                });
+    }
+
+    /**
+     * 返回请求中的会话ID，没有时为用户创建新会话
+     */
+    private Mono<String> resolveSession(ChatRequest request) {
+        if (request.sessionId != null) {
+            return Mono.just(request.sessionId);
+        }
+        return blocking(() -> {
+            String title = "新对话";
+            logger.info("未提供会话ID，为用户{}创建新会话：{}", request.userId, title);
+            ChatSessionDTO newSession;
+            try {
+                newSession = chatSessionService.createSession(request.userId, title);
+            } catch (Exception e) {
+                logger.error("处理对话请求失败：创建新会话时出错", e);
+                throw new IllegalArgumentException("创建新会话时发生错误：" + e.getMessage());
+            }
+            if (newSession == null) {
+                logger.error("处理对话请求失败：无法创建新会话");
+                throw new IllegalArgumentException("创建新会话失败");
+            }
+            logger.info("成功创建新会话，ID：{}", newSession.getId());
+            return newSession.getId();
+        });
+    }
+
+    /**
+     * 分析问题类型，未返回有效类型时以错误结束
+     */
+    private Mono<String> classifyQuestion(String question) {
+        return questionTypeService.classify(question)
+                .onErrorMap(error -> {
+                    logger.error("问题类型分析失败: {}", error.getMessage());
+                    return new RuntimeException("AI服务分析问题类型失败: " + error.getMessage(), error);
+                })
+                .filter(questionType -> !questionType.trim().isEmpty())
+                .switchIfEmpty(Mono.defer(() -> {
+                    logger.error("模型未返回有效问题类型，中断处理");
+                    return Mono.error(new RuntimeException("AI服务暂时不可用，未能分析问题类型"));
+                }))
+                .doOnNext(questionType -> logger.info("问题类型分析结果: {}", questionType));
+    }
+
+    /**
+     * 查询当前用户的年级和专业，用于系统提示词，查询失败时返回空字符串
+     */
+    private String lookupUserInfo(String cleanToken) {
+        try {
+            String username = jwtUtil.getUsernameFromToken(cleanToken);
+            if (username != null) {
+                User user = userService.findByUsername(username);
+                if (user != null && user.getGrade() != null && user.getMajor() != null) {
+                    return getUserGradeInfo(user.getGrade(), user.getMajor());
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("获取用户信息失败: {}", e.getMessage());
+        }
+        return "";
+    }
+
+    /**
+     * 在boundedElastic上执行阻塞调用
+     */
+    private <T> Mono<T> blocking(Callable<T> callable) {
+        return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 如果是{"content":"实际内容"}格式，提取实际内容，否则保持原样
+     */
+    private String extractMessageContent(String messageContent) {
+        try {
+            JsonNode node = new ObjectMapper().readTree(messageContent);
+            if (node.has("content")) {
+                String content = node.get("content").asText();
+                logger.info("从JSON中提取实际消息内容: {}", content);
+                return content;
+            }
+        } catch (Exception e) {
+            logger.info("消息内容不是JSON格式，保持原样");
+        }
+        return messageContent;
+    }
+
+    /**
+     * 把本次用户消息追加到历史消息末尾
+     *
+     * @param history 并行读取到的历史消息，可能已包含本次消息
+     * @param saved 入库后的本次消息，入库失败时为null
+     * @param question 本次用户输入
+     */
+    private List<ChatMessageDTO> appendCurrentMessage(List<ChatMessageDTO> history, ChatMessageDTO saved, String question) {
+        String savedId = saved != null ? saved.getId() : null;
+        List<ChatMessageDTO> messages = new ArrayList<>(history.size() + 1);
+        for (ChatMessageDTO msg : history) {
+            if (savedId == null || !savedId.equals(msg.getId())) {
+                messages.add(msg);
+            }
+        }
+        ChatMessageDTO current = saved;
+        if (current == null) {
+            current = new ChatMessageDTO();
+            current.setRole("user");
+            current.setContent(question);
+            current.setCreateTime(new Date());
+        }
+        messages.add(current);
+        return limitHistory(messages);
+    }
+
+    /**
+     * 去掉已进入摘要的消息，最后一条（本次问题）总会保留
+     *
+     * <p>创建时间与摘要截止时间相同的消息无法区分是否已进入摘要，按原文保留。</p>
+     */
+    private List<ChatMessageDTO> dropSummarized(List<ChatMessageDTO> messages, SessionSummaryService.Summary summary) {
+        if (summary.getUntil() == null || messages.size() <= 1) {
+            return messages;
+        }
+        List<ChatMessageDTO> remaining = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            ChatMessageDTO message = messages.get(i);
+            if (i == messages.size() - 1 || !message.getCreateTime().before(summary.getUntil())) {
+                remaining.add(message);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 按时间顺序排序并限制历史消息数量，只取最近的对话
+     */
+    private List<ChatMessageDTO> limitHistory(List<ChatMessageDTO> messages) {
+        if (messages.size() <= 1) {
+            return messages;
+        }
+        // 确保所有消息都有创建时间，避免排序时的空指针异常
+        messages.forEach(msg -> {
+            if (msg.getCreateTime() == null) {
+                msg.setCreateTime(new Date());
+                logger.warn("为消息 {} 设置了默认的创建时间", msg.getId());
+            }
+        });
+
+        // 稳定排序，时间相同的消息保持读取顺序，再取最后的若干条
+        messages.sort(Comparator.comparing(ChatMessageDTO::getCreateTime));
+        int size = messages.size();
+        return size > maxHistoryMessages ? new ArrayList<>(messages.subList(size - maxHistoryMessages, size)) : messages;
+    }
+
+    /**
+     * 选择提示词模板、构造请求，并转发模型输出
+     */
+    private Flux<ServerSentEvent<Object>> generate(ChatTurn turn) {
+        ChatStreamContext context = turn.context;
+
+        // 选择合适的系统提示词模板，规章类模板只发送与问题相关的条款；实际发送的提示词也是回答缓存的键
+        String systemPrompt = promptTemplateService.buildSystemPrompt(context.getQuestionType(), context.getQuestion());
+        logger.info("选择的提示词模板: {}", systemPrompt);
+        context.setSystemPrompt(systemPrompt);
+
+        // 提示词带有会话摘要或其他会话的历史消息时，回答与用户个人的对话有关，不查询也不写入回答缓存；
+        // 只对会话第一条问题查询和缓存回答，后续问题的回答可能依赖上文
+        boolean personalized = (turn.summary != null && !turn.summary.isEmpty())
+                || (turn.memory != null && !turn.memory.isEmpty());
+        boolean firstTurn = turn.history.size() == 1;
+        boolean useCache = !personalized && firstTurn;
+        String cachedAnswer = useCache ? answerCacheService.lookup(
+                context.getQuestionType(), systemPrompt, turn.userInfo, context.getQuestion()) : null;
+        if (cachedAnswer != null) {
+            logger.info("问题类型为{}，使用缓存的回答，不再调用模型", context.getQuestionType());
+            return savingPartialAnswer(replayAnswer(cachedAnswer, context), context);
+        }
+
+        boolean cacheAnswer = useCache && answerCacheService.isCacheable(context.getQuestionType());
+        context.setRetainAnswer(cacheAnswer);
+
+        return savingPartialAnswer(streamAnswer(getStringObjectMap(turn.history, systemPrompt, turn.userInfo,
+                turn.summary, turn.memory), context, cacheAnswer ? turn.userInfo : null), context);
+    }
+
+    /**
+     * 客户端断开或出错时保存已生成的部分回复
+     */
+    private Flux<ServerSentEvent<Object>> savingPartialAnswer(Flux<ServerSentEvent<Object>> answer,
+                                                              ChatStreamContext context) {
+        return answer.doFinally(signal -> {
+            if (signal != SignalType.ON_COMPLETE) {
+                Schedulers.boundedElastic().schedule(() -> {
+                    try {
+                        saveAssistantMessage(context, false);
+                    } catch (Exception e) {
+                        logger.error("保存部分AI回复时出错: {}", e.getMessage());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 转发模型输出，上游结束后追加书籍信息和完成事件
+     *
+     * @param cacheProfile 上游正常结束后缓存回答时使用的用户身份信息，为null时不缓存
+     */
+    private Flux<ServerSentEvent<Object>> streamAnswer(Map<String, Object> requestBody, ChatStreamContext context,
+                                                       String cacheProfile) {
+        // 确保text字段包含当前问题 - 这是必需的字段
+        Object text = requestBody.get("text");
+        if (text == null || text.toString().trim().isEmpty()) {
+            logger.error("请求体中缺少text字段，这是必需的，中断处理");
+            return Flux.error(new RuntimeException("系统错误：请求参数不完整"));
+        }
+        logger.info("最终请求体结构: {}", requestBody.keySet());
+
+        Flux<ServerSentEvent<Object>> answer = aiApiService.processChatStream(context.getSessionId(), requestBody)
+                .doOnCancel(() -> {
+                    // 下游取消（客户端断开或超时）会一直传播到WebClient，关闭到模型服务的连接
+                    meterRegistry.counter(CANCELLED_STREAMS_METRIC).increment();
+                    logger.info("客户端已断开，取消上游模型流: sessionId={}, 已接收{}个分块, 耗时{}ms",
+                            context.getSessionId(), context.getChunkCounter().get(), context.getElapsedMillis());
+                })
+                // 分段保存可能同步写数据库（SYNC 模式或写入队列已满），不能在WebClient的事件循环线程上执行
+                .publishOn(Schedulers.boundedElastic())
+                .concatMapIterable(event -> {
+                    int currentChunk = context.recordEvent();
+                    logger.debug("收到分块 {}: {}", currentChunk, event);
+                    List<Object> items = convertEvent(event, context);
+                    checkpoint(context, false);
+                    return items;
+                })
+                .transform(items -> withInlineBookInfo(items, context));
+
+        return answer.concatWith(Flux.defer(() -> {
+            context.markUpstreamEnd();
+            logger.info("对话流传输完成，耗时：{}ms，首个分块延迟：{}ms",
+                    context.getElapsedMillis(), context.getFirstEventLatencyMillis());
+            if (cacheProfile != null) {
+                answerCacheService.store(context.getQuestionType(), context.getSystemPrompt(), cacheProfile,
+                        context.getQuestion(), context.getAnswerContent().toString());
+            }
+            return afterAnswer(context);
+        }));
+    }
+
+    /**
+     * 按模型流的格式分段发送缓存的回答，后续处理与模型生成的回答相同
+     */
+    private Flux<ServerSentEvent<Object>> replayAnswer(String answer, ChatStreamContext context) {
+        List<String> chunks = new ArrayList<>(answer.length() / REPLAY_CHUNK_CHARS + 1);
+        int start = 0;
+        while (start < answer.length()) {
+            int end = Math.min(start + REPLAY_CHUNK_CHARS, answer.length());
+            // 不拆开代理对
+            if (end < answer.length() && Character.isHighSurrogate(answer.charAt(end - 1))) {
+                end++;
+            }
+            chunks.add(answer.substring(start, end));
+            start = end;
+        }
+
+        return Flux.fromIterable(chunks)
+                // 与 streamAnswer 相同，分段保存在boundedElastic上执行
+                .publishOn(Schedulers.boundedElastic())
+                .concatMapIterable(chunk -> {
+                    context.recordEvent();
+                    List<Object> items = convertEvent(StreamEvent.content(chunk), context);
+                    checkpoint(context, false);
+                    return items;
+                })
+                .transform(items -> withInlineBookInfo(items, context))
+                .concatWith(Flux.defer(() -> {
+                    context.markUpstreamEnd();
+                    logger.info("缓存回答发送完成，耗时：{}ms", context.getElapsedMillis());
+                    return afterAnswer(context);
+                }));
+    }
+
+    /**
+     * 回答结束后的书籍信息和完成事件
+     */
+    private Flux<ServerSentEvent<Object>> afterAnswer(ChatStreamContext context) {
+        return bookEvents(context).concatWith(Flux.defer(() -> completionEvents(context)));
+    }
+
+    /**
+     * 转换一个上游事件，并增量识别正文中的书名（书名号状态跨分块保持）
+     *
+     * @return 需要发送的事件，之后是该事件中新出现的书名（String）
+     */
+    private List<Object> convertEvent(StreamEvent event, ChatStreamContext context) {
+        ServerSentEvent<Object> sse = toServerSentEvent(event, context);
+        if (sse == null) {
+            return List.of();
+        }
+        if (event.getType() != StreamEvent.Type.CONTENT) {
+            return List.of(sse);
+        }
+        List<String> titles = context.scanTitles(event.getData());
+        if (titles.isEmpty()) {
+            return List.of(sse);
+        }
+        List<Object> items = new ArrayList<>(titles.size() + 1);
+        items.add(sse);
+        for (String bookName : titles) {
+            logger.info("从内容中检测到书籍名称: 《{}》", bookName);
+            items.add(bookName);
+        }
+        return items;
+    }
+
+    /**
+     * 书籍类问题在书名出现时立即查询馆藏，查到后插入book_info事件，查询与生成并行
+     *
+     * <p>正文事件保持原有顺序，book_info事件在查询完成时插入；所有查询结束后流才结束，
+     * 回答结束后的书籍摘要直接使用查询结果。其他问题类型只保留正文事件。</p>
+     *
+     * @param items {@link #convertEvent} 的输出
+     */
+    @SuppressWarnings("unchecked")
+    private Flux<ServerSentEvent<Object>> withInlineBookInfo(Flux<Object> items, ChatStreamContext context) {
+        if (!inlineBookLookup || !shouldSendBookSummary(context.getQuestionType())) {
+            return items.filter(ServerSentEvent.class::isInstance)
+                    .map(item -> (ServerSentEvent<Object>) item);
+        }
+        return items.publish(shared -> Flux.merge(
+                shared.filter(ServerSentEvent.class::isInstance)
+                        .map(item -> (ServerSentEvent<Object>) item),
+                shared.filter(String.class::isInstance)
+                        .flatMap(title -> inlineBookInfo((String) title, context))));
+    }
+
+    /**
+     * 查询一个书名，在馆藏中找到时生成只含这本书的book_info事件
+     */
+    private Mono<ServerSentEvent<Object>> inlineBookInfo(String title, ChatStreamContext context) {
+        if (context.getLookedUpCount() >= bookLookupService.getMaxTitles() || !context.markLookedUp(title)) {
+            return Mono.empty();
+        }
+        return blocking(() -> bookLookupService.findByTitles(List.of(title)))
+                .flatMap(found -> {
+                    BookDTO book = found.get(title);
+                    if (book == null) {
+                        return Mono.empty();
+                    }
+                    context.getFoundBooks().put(title, book);
+                    if (!context.markBookInfoSent(title)) {
+                        return Mono.empty();
+                    }
+                    logger.info("书籍《{}》查询完成，耗时{}ms", title, context.getElapsedMillis());
+                    return Mono.just(bookInfoEvent(List.of(bookInfo(title, book))));
+                })
+                .onErrorResume(error -> {
+                    logger.error("查询书籍《{}》时发生错误: {}", title, error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * 把解码后的流事件转换为发送给客户端的事件
+     *
+     * @return 需要发送的事件，不需要发送时返回null
+     */
+    private ServerSentEvent<Object> toServerSentEvent(StreamEvent event, ChatStreamContext context) {
+        switch (event.getType()) {
+            case THINK:
+                // 思考内容只保存，不发送给客户端
+                context.appendThink(event.getData());
+                logger.debug("处理思考内容: {}", event.getData());
+                return null;
+
+            case END:
+                logger.info("收到结束标记");
+                return null;
+
+            case CONTENT:
+            default:
+                String data = event.getData();
+                if (data.isEmpty()) {
+                    return null;
+                }
+                // 累积完整内容用于最终保存
+                context.appendContent(data);
+
+                Map<String, Object> contentEvent = new HashMap<>();
+                contentEvent.put("type", event.getType().getWireName());
+                contentEvent.put("data", data);
+                return ServerSentEvent.<Object>builder(contentEvent).build();
+        }
+    }
+
+    /**
+     * 只在特定问题类型下查询书籍信息并生成书籍摘要事件，查询失败不影响对话完成
+     */
+    private Flux<ServerSentEvent<Object>> bookEvents(ChatStreamContext context) {
+        String questionType = context.getQuestionType();
+        if (!shouldSendBookSummary(questionType)) {
+            logger.info("问题类型为{}，跳过发送书籍信息", questionType);
+            return Flux.empty();
+        }
+        if (context.getBookNames().isEmpty()) {
+            logger.info("未发现书籍引用，跳过书籍信息查询");
+            return Flux.empty();
+        }
+        logger.info("问题类型为{}，查询并发送书籍信息", questionType);
+        return lookupBooks(context)
+                .thenMany(Flux.defer(() -> bookSummaryEvents(context)))
+                .onErrorResume(error -> {
+                    logger.error("发送书籍信息失败: {}", error.getMessage());
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * 一次查询回答中提到的、生成过程中还未查询的书籍
+     *
+     * @param context 流上下文，查询结果记录到其中的foundBooks
+     */
+    private Mono<Void> lookupBooks(ChatStreamContext context) {
+        List<String> bookNames = new ArrayList<>();
+        for (String bookName : context.getBookNames()) {
+            if (context.markLookedUp(bookName)) {
+                bookNames.add(bookName);
+            }
+        }
+        if (bookNames.isEmpty()) {
+            logger.info("书籍已在生成过程中查询完成");
+            return Mono.empty();
+        }
+        logger.info("发现书籍引用: {}", bookNames);
+        return blocking(() -> bookLookupService.findByTitles(bookNames))
+                .doOnNext(books -> context.getFoundBooks().putAll(books))
+                .then();
+    }
+
+    /**
+     * 构建书籍摘要正文和汇总的book_info事件，book_info只包含生成过程中还未发送的书籍
+     *
+     * @param context 流上下文，书籍摘要会追加到完整内容中
+     * @return 书籍摘要事件和book_info事件
+     */
+    private Flux<ServerSentEvent<Object>> bookSummaryEvents(ChatStreamContext context) {
+        Set<String> bookNames = context.getBookNames();
+        Map<String, BookDTO> foundBooks = context.getFoundBooks();
+
+        StringBuilder summaryContent = new StringBuilder("<br><br>====书籍查询结果====<br>");
+        summaryContent.append("书籍信息查询结果：<br />");
+        List<Map<String, Object>> books = new ArrayList<>(bookNames.size());
+
+        for (String bookName : bookNames) {
+            BookDTO book = foundBooks.get(bookName);
+            if (book == null) {
+                summaryContent.append("《").append(bookName).append("》").append(" - 未被馆藏收录<br>");
+                continue;
+            }
+            summaryContent.append("《").append(bookName).append("》");
+            // 只添加非空信息
+            if (book.getAuthor() != null && !book.getAuthor().isEmpty()) {
+                summaryContent.append(" - ").append(book.getAuthor());
+            }
+            if (book.getPublisher() != null && !book.getPublisher().isEmpty()) {
+                summaryContent.append("，出版社：").append(book.getPublisher());
+            }
+            if (book.getRating() != null && book.getRating() > 0) {
+                summaryContent.append("，评分：").append(book.getRating());
+            }
+            if (book.getQuantity() != null && book.getQuantity() > 0) {
+                summaryContent.append("，馆藏数量：").append(book.getQuantity());
+            }
+            summaryContent.append("<br>");
+            if (context.markBookInfoSent(bookName)) {
+                books.add(bookInfo(bookName, book));
+            }
+        }
+
+        summaryContent.append("==========<br>");
+
+        // 追加到完整内容
+        context.appendContent(summaryContent.toString());
+
+        Map<String, Object> summaryEvent = new HashMap<>();
+        summaryEvent.put("type", "content");
+        summaryEvent.put("data", summaryContent.toString());
+
+        logger.info("已生成书籍摘要信息，{}本书在馆藏中找到", foundBooks.size());
+        logger.debug(summaryContent.toString());
+
+        ServerSentEvent<Object> summary = ServerSentEvent.<Object>builder(summaryEvent).event("chunk").build();
+        if (books.isEmpty()) {
+            return Flux.just(summary);
+        }
+        return Flux.just(summary, bookInfoEvent(books));
+    }
+
+    private ServerSentEvent<Object> bookInfoEvent(List<Map<String, Object>> books) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", "book_info");
+        event.put("books", books);
+        return ServerSentEvent.<Object>builder(event).event("book_info").build();
+    }
+
+    /**
+     * book_info事件中一本书的信息
+     *
+     * <p>事件结构：</p>
+     * <pre>
+     * {
+     *   "type": "book_info",
+     *   "books": [{
+     *     "name": "Java编程思想",
+     *     "title": "Java编程思想（第4版）",
+     *     "author": "Bruce Eckel",
+     *     "publisher": "机械工业出版社",
+     *     "rating": 9.5,
+     *     "quantity": 10
+     *   }]
+     * }
+     * </pre>
+     *
+     * @param bookName 回答中的书名
+     * @param book 馆藏书籍
+     */
+    private Map<String, Object> bookInfo(String bookName, BookDTO book) {
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", bookName);
+        info.put("id", book.getId());
+        info.put("title", book.getTitle());
+        // 只添加非空字段
+        if (book.getAuthor() != null && !book.getAuthor().isEmpty()) {
+            info.put("author", book.getAuthor());
+        }
+        if (book.getPublisher() != null && !book.getPublisher().isEmpty()) {
+            info.put("publisher", book.getPublisher());
+        }
+        if (book.getRating() != null && book.getRating() > 0) {
+            info.put("rating", book.getRating());
+        }
+        if (book.getQuantity() != null && book.getQuantity() > 0) {
+            info.put("quantity", book.getQuantity());
+        }
+        return info;
+    }
+
+    /**
+     * 生成完成事件和[DONE]信号，并保存AI回复
+     */
+    private Flux<ServerSentEvent<Object>> completionEvents(ChatStreamContext context) {
+        String sessionId = context.getSessionId();
+        // 记录会话完成状态，防止重复保存
+        String sessionCompleteKey = context.getCompletionKey();
+
+        // 如果已经完成过，不再重复执行
+        if (!completionRegistry.markCompleted(sessionCompleteKey)) {
+            logger.warn("线程ID: {} - 会话已经完成，跳过重复处理。sessionId={}, key={}",
+                    Thread.currentThread().getId(), sessionId, sessionCompleteKey);
+            return Flux.empty();
+        }
+
+        logger.info("线程ID：{} - 请求完成 - 统计: 处理了{}个分块, 耗时{}ms, 检测到{}本书, 找到{}本书信息",
+                Thread.currentThread().getId(), context.getChunkCounter().get(), context.getElapsedMillis(),
+                context.getBookNames().size(), context.getFoundBooks().size());
+
+        // 完成信息和[DONE]信号，告知前端流已结束
+        Map<String, Object> completionEvent = new HashMap<>();
+        completionEvent.put("type", "content");
+        completionEvent.put("data", "生成完成");
+
+        return Flux.just(
+                        ServerSentEvent.<Object>builder(completionEvent).event("message").build(),
+                        doneEvent())
+                .concatWith(Mono.fromRunnable(() -> saveAssistantMessage(context, true))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .onErrorResume(error -> {
+                            logger.error("保存AI回复时出错: {}", error.getMessage());
+                            return Mono.empty();
+                        })
+                        .then(Mono.empty()));
+    }
+
+    /**
+     * 把积累的回复内容追加写入数据库，第一段写入时创建消息
+     *
+     * <p>回复边生成边分段写入，内存中只保留未写入的部分和开头的 retain-chars 个字符，
+     * 进程崩溃或客户端断开时已写入的部分不会丢失。可能阻塞，只在boundedElastic上调用。</p>
+     *
+     * @param force 为false时积累到 segment-chars 才写入
+     */
+    private void checkpoint(ChatStreamContext context, boolean force) {
+        synchronized (context) {
+            String segment = context.drainPendingContent(force ? 0 : checkpointSegmentChars);
+            if (segment == null) {
+                return;
+            }
+            try {
+                ChatMessageDTO message = context.getAssistantMessage();
+                if (message == null) {
+                    message = chatMessageService.startMessage(context.getSessionId(), context.getUserId(), "assistant");
+                    context.setAssistantMessage(message);
+                }
+                chatMessageService.appendContent(message, toStoredContent(segment));
+            } catch (Exception e) {
+                logger.error("分段保存AI回复失败: sessionId={}, 丢失{}个字符, error={}",
+                        context.getSessionId(), segment.length(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 保存AI回复到会话：写入剩余内容，更新token数和会话预览
+     *
+     * @param complete 回答是否正常结束，客户端断开或出错时为false，只在已生成内容时保存
+     */
+    private void saveAssistantMessage(ChatStreamContext context, boolean complete) {
+        synchronized (context) {
+            if (!context.markSaved()) {
+                return;
+            }
+            context.closeThink();
+            checkpoint(context, true);
+            ChatMessageDTO message = context.getAssistantMessage();
+            if (message == null) {
+                if (!complete) {
+                    return;
+                }
+                // 回答为空
+                message = chatMessageService.startMessage(context.getSessionId(), context.getUserId(), "assistant");
+                context.setAssistantMessage(message);
+            }
+            String retained = toStoredContent(context.getRetainedContent());
+
+            // 记录保存的回复内容（前100个字符）
+            String responsePreview = retained.length() > 100 ? retained.substring(0, 100) + "..." : retained;
+            logger.info("线程ID：{} - {}AI回复已保存到会话: sessionId={}, 内容预览: {}, 约{}个token{}",
+                    Thread.currentThread().getId(), complete ? "" : "部分", context.getSessionId(),
+                    responsePreview, message.getTokenCount(), context.isContentTruncated() ? "，内存中只保留开头部分" : "");
+
+            chatMessageService.finishMessage(message, context.getUserId(), retained);
+        }
+        if (complete) {
+            sessionSummaryService.requestRefresh(context.getSessionId());
+        }
+    }
+
+    /**
+     * 保存时把模型输出中字面的 {@code \n} 转换为 &lt;br&gt;
+     */
+    private static String toStoredContent(String content) {
+        return content.replaceAll("\\\\n", "<br>");
+    }
+
+    /**
+     * 把错误转换为error事件和[DONE]信号，确保客户端停止等待
+     */
+    private Flux<ServerSentEvent<Object>> errorEvents(Throwable error) {
+        logger.error("线程ID：{} - 处理对话请求时发生错误: {}", Thread.currentThread().getId(), error.getMessage());
+
+        Map<String, Object> errorEvent = new HashMap<>();
+        errorEvent.put("error", generateUserFriendlyErrorMessage(error));
+        return Flux.just(ServerSentEvent.<Object>builder(errorEvent).event("error").build(), doneEvent());
+    }
+
+    private ServerSentEvent<Object> doneEvent() {
+        return ServerSentEvent.<Object>builder("[DONE]").event("done").build();
+    }
+
+    /**
+     * 根据异常类型生成用户友好的错误消息
+     * 
+     * @param error 原始异常
+     * @return 用户友好的错误消息
+     */
+    private String generateUserFriendlyErrorMessage(Throwable error) {
+        String errorMessage = "抱歉，服务暂时不可用，请稍后再试。";
+        
+        if (error == null) {
+            return errorMessage;
+        }
+        
+        String message = error.getMessage();
+        if (message == null) {
+            return errorMessage;
+        }
+        
+        // 根据错误消息判断具体类型
+        if (message.contains("timeout") || message.contains("TimeoutException")) {
+            errorMessage = "请求超时，请稍后再试。";
+        } else if (message.contains("403")) {
+            errorMessage = "未授权，请检查您的登录状态。";
+        } else if (message.contains("5")) {
+            errorMessage = "AI服务暂时不可用，请稍后再试。";
+        } else if (message.contains("token") || message.contains("Token")) {
+            errorMessage = "授权验证失败，请重新登录。";
+        }
+        
+        return errorMessage;
+    }
+
+    /**
+     * 根据入学年份计算年级信息
+     * 
+     * @param grade 入学年份，例如"2021"
+     * @param major 专业名称
+     * @return 年级信息字符串，例如"该同学为大二学生，网络工程专业，回答时需考虑用户身份"
+     */
+    private String getUserGradeInfo(String grade, String major) {
+        if (grade == null || grade.trim().isEmpty()) {
+            return "";
+        }
+        
+        try {
+            int enrollYear = Integer.parseInt(grade);
+            Calendar now = Calendar.getInstance();
+            int currentYear = now.get(Calendar.YEAR);
+            int currentMonth = now.get(Calendar.MONTH) + 1; // 月份从0开始
+            
+            // 如果当前月份小于9月，学年未更新
+            if (currentMonth < 9) {
+                currentYear -= 1;
+            }
+            
+            int yearDiff = currentYear - enrollYear + 1;
+            String gradeName;
+            
+            switch (yearDiff) {
+                case 1:
+                    gradeName = "大一";
+                    break;
+                case 2:
+                    gradeName = "大二";
+                    break;
+                case 3:
+                    gradeName = "大三";
+                    break;
+                case 4:
+                    gradeName = "大四";
+                    break;
+                default:
+                    if (yearDiff <= 0) {
+                        gradeName = "准大学生";
+            } else {
+                        gradeName = "毕业生";
+                    }
+            }
+            
+            major = (major != null && !major.trim().isEmpty()) ? major : "未知专业";
+            
+            return "用户为" + gradeName + "学生，" + major + "专业。"; // 修改文本格式，使其更适合作为系统提示词的一部分
+        } catch (NumberFormatException e) {
+            logger.warn("年级格式不正确: {}", grade);
+            return "";
+        }
+    }
+
+    @NotNull
+    private Map<String, Object> getStringObjectMap(List<ChatMessageDTO> recentMessages, String systemPrompt,
+                                                   String userInfo, String summary, String memory) {
+        // 添加用户身份信息到系统提示词
+        if (userInfo != null && !userInfo.isEmpty()) {
+            systemPrompt = userInfo + "\n\n" + systemPrompt;
+            logger.info("添加用户身份信息到系统提示词: {}", userInfo);
+        }
+
+        // 较早对话的摘要放在系统提示词末尾
+        if (summary != null && !summary.isEmpty()) {
+            systemPrompt = systemPrompt + "\n\n以下是本次会话较早对话的摘要：\n" + summary;
+        }
+
+        // 其他会话中的相关历史消息
+        if (memory != null && !memory.isEmpty()) {
+            systemPrompt = systemPrompt + "\n\n" + memory;
+        }
+
+        // 系统提示词之外的预算从最新的消息开始填充，超出部分截断或丢弃
+        int systemPromptTokens = TokenEstimator.estimate(systemPrompt);
+        int historyBudget = Math.max(contextTokenBudget - systemPromptTokens, MIN_PARTIAL_MESSAGE_TOKENS);
+        List<ChatMessageDTO> finalRecentMessages = ContextPacker.pack(recentMessages, historyBudget, MIN_PARTIAL_MESSAGE_TOKENS);
+        int historyTokens = finalRecentMessages.stream().mapToInt(ContextPacker::tokensOf).sum();
+        logger.info("上下文: 系统提示词约{}个token，发送{}/{}条消息约{}个token",
+                systemPromptTokens, finalRecentMessages.size(), recentMessages.size(), historyTokens);
+
+        List<Map<String, String>> messages = new ArrayList<>();
+        for (ChatMessageDTO msg : finalRecentMessages) {
+            // 确保每个消息的createTime不为null，避免排序出现空指针异常
+            if (msg.getCreateTime() == null) {
+                msg.setCreateTime(new Date());
+            }
+            
+            Map<String, String> messageMap = new HashMap<>();
+            messageMap.put("role", msg.getRole());
+            messageMap.put("content", msg.getContent());
+            messages.add(messageMap);
+        }
+
+        // 构建请求体
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("messages", messages);
+        requestBody.put("max_length", maxLength);
+        requestBody.put("with_history", true);
+        requestBody.put("system_prompt", systemPrompt);
+        
+        // 明确添加最后一条用户消息作为当前问题，确保问题分析能够正确处理
+        String currentUserQuestion = "";
+        if (!finalRecentMessages.isEmpty()) {
+            // 查找最后一条用户消息
+            for (int i = finalRecentMessages.size() - 1; i >= 0; i--) {
+                ChatMessageDTO msg = finalRecentMessages.get(i);
+                if ("user".equals(msg.getRole())) {
+                    currentUserQuestion = msg.getContent();
+                    logger.info("将最后一条用户消息设置为当前问题: {}", 
+                            currentUserQuestion.substring(0, Math.min(50, currentUserQuestion.length())) + 
+                            (currentUserQuestion.length() > 50 ? "..." : ""));
+                    break;
+                }
+            }
+        }
+        
+        // 确保当前问题被正确添加到请求体中
+        if (!currentUserQuestion.isEmpty()) {
+            requestBody.put("text", currentUserQuestion);
+            // 验证text字段是否被成功添加
+            logger.info("当前问题已添加到请求体中，长度: {}", currentUserQuestion.length());
+        } else {
+            logger.warn("未找到用户消息，无法设置当前问题");
+        }
+        
+        return requestBody;
+    }
+
+    /**
+     * 判断是否应该发送书籍摘要
+     * 
+     * @param questionType 问题类型
+     * @return 如果是图书查询或推荐类型，返回true
+     */
+    private boolean shouldSendBookSummary(String questionType) {
+        return "BOOK_RECOMMEND".equals(questionType) || 
+               "BOOK_SEARCH".equals(questionType);
+    }
+}
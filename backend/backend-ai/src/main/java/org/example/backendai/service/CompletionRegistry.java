@@ -0,0 +1,60 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+
+/**
+ * 已完成的对话流，防止同一个流重复发送完成事件和重复保存回复
+ *
+ * <p>每条记录在写入 ttl-minutes 后单独过期，总数不超过 max-entries，超出时淘汰最早的记录。
+ * 基于 Caffeine 的并发哈希表，标记完成不需要全局锁。max-entries 应大于 ttl-minutes 内的完成次数，
+ * 否则记录可能在过期前被淘汰，淘汰次数见 cache.evictions{cache=stream_completion}。</p>
+ */
+@Service
+public class CompletionRegistry {
+
+    private static final String DUPLICATE_METRIC = "chat.completion.duplicate";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.completion.ttl-minutes:10}")
+    private long ttlMinutes;
+
+    @Value("${chat.completion.max-entries:100000}")
+    private long maxEntries;
+
+    private Cache<String, Boolean> completed;
+
+    @PostConstruct
+    public void init() {
+        completed = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, completed, "stream_completion");
+    }
+
+    /**
+     * 标记完成
+     *
+     * @param key 完成去重使用的键
+     * @return 第一次标记时返回true，已经完成过时返回false
+     */
+    public boolean markCompleted(String key) {
+        if (completed.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+            return true;
+        }
+        meterRegistry.counter(DUPLICATE_METRIC).increment();
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 模型服务非流式调用的合并
+ *
+ * <p>同一类型、相同参数的并发调用共用一次上游调用和结果（如多个用户的兴趣标签相同，画像文本相同的推荐检索）。
+ * 成功的结果再保留 result-ttl-seconds 秒，期间相同的调用直接返回；0表示只合并进行中的调用。
+ * 失败或返回空的调用不保留，下一次调用重新请求。</p>
+ *
+ * <p>取消订阅不会取消共享的上游调用，其他等待同一结果的调用仍能拿到结果。</p>
+ *
+ * <p>指标：ai.client.coalesced{type}（共用了其他调用结果的次数），
+ * cache.gets{cache=model_&lt;type&gt;}（按调用类型的命中率）。</p>
+ */
+@Service
+public class ModelCallCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelCallCoalescer.class);
+
+    private static final String COALESCED_METRIC = "ai.client.coalesced";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${ai.client.coalesce.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ai.client.coalesce.result-ttl-seconds:10}")
+    private long resultTtlSeconds;
+
+    @Value("${ai.client.coalesce.max-entries:1000}")
+    private long maxEntries;
+
+    /**
+     * 调用类型 -> 调用参数 -> 进行中或保留的结果
+     */
+    private final Map<String, AsyncCache<Object, Object>> calls = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            logger.info("模型服务调用合并已开启，结果保留{}秒", resultTtlSeconds);
+        } else {
+            logger.info("模型服务调用合并已关闭");
+        }
+    }
+
+    /**
+     * 合并相同参数的调用
+     *
+     * @param type 调用类型，不同类型分别合并
+     * @param key 调用参数，按 equals 判断是否相同
+     * @param call 发起上游调用
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> coalesce(String type, Object key, Supplier<Mono<T>> call) {
+        if (!enabled || key == null) {
+            return Mono.defer(call);
+        }
+        return Mono.defer(() -> {
+            AsyncCache<Object, Object> cache = cacheFor(type);
+            AtomicBoolean started = new AtomicBoolean(false);
+            CompletableFuture<Object> future = cache.get(key, (k, executor) -> {
+                started.set(true);
+                return call.get().map(value -> (Object) value).toFuture();
+            });
+            if (started.get() && resultTtlSeconds <= 0) {
+                // 不保留结果：调用结束后移除，之后的调用重新请求
+                future.whenComplete((value, error) -> cache.asMap().remove(key, future));
+            }
+            Mono<Object> result = Mono.fromFuture(future, true);
+            if (!started.get()) {
+                meterRegistry.counter(COALESCED_METRIC, "type", type).increment();
+                logger.debug("{}调用与进行中或最近的相同调用合并", type);
+            }
+            return (Mono<T>) result;
+        });
+    }
+
+    private AsyncCache<Object, Object> cacheFor(String type) {
+        return calls.computeIfAbsent(type, key -> {
+            Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                    .maximumSize(maxEntries)
+                    .recordStats();
+            if (resultTtlSeconds > 0) {
+                builder.expireAfterWrite(Duration.ofSeconds(resultTtlSeconds));
+            }
+            AsyncCache<Object, Object> cache = builder.buildAsync();
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "model_" + type);
+            return cache;
+        });
+    }
+}
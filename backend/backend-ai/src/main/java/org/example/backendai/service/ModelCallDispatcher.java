@@ -0,0 +1,274 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按优先级分配模型服务的并发名额
+ *
+ * <p>所有模型服务调用（包括整个流式生成过程）各占一个名额，总数不超过 max-concurrent：</p>
+ * <ul>
+ *   <li>INTERACTIVE：对话流和问题分类，可以使用全部名额</li>
+ *   <li>BACKGROUND：兴趣画像分析、推荐检索、会话摘要，最多同时占用 background.max-concurrent 个名额，
+ *       其余名额留给对话，大量用户同时重新生成画像时不会占满模型服务</li>
+ * </ul>
+ *
+ * <p>名额用完时调用排队，有名额释放时先分配给排队的 INTERACTIVE 调用；有 INTERACTIVE 调用排队时，
+ * 新的 BACKGROUND 调用不会插队。排队超过 max-queue 或等待超过 queue-timeout-ms 时以
+ * {@link DispatchRejectedException} 结束。已开始的调用不会被中断。</p>
+ *
+ * <p>指标：ai.client.dispatch.running{priority}、ai.client.dispatch.queued{priority}、
+ * ai.client.dispatch.wait{priority}（排队耗时）、ai.client.dispatch.rejected{priority}。</p>
+ */
+@Service
+public class ModelCallDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelCallDispatcher.class);
+
+    /**
+     * 调用优先级，声明顺序即分配顺序
+     */
+    public enum Priority {
+        INTERACTIVE,  // 用户正在等待的对话
+        BACKGROUND    // 画像、推荐、摘要
+    }
+
+    /**
+     * 排队已满或等待超时时调用失败的异常
+     */
+    public static class DispatchRejectedException extends RuntimeException {
+        public DispatchRejectedException(Priority priority, String reason) {
+            super("AI服务繁忙，" + priority + "调用" + reason);
+        }
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${ai.client.dispatch.max-concurrent:200}")
+    private int maxConcurrent;
+
+    @Value("${ai.client.dispatch.interactive.max-queue:400}")
+    private int interactiveMaxQueue;
+
+    @Value("${ai.client.dispatch.interactive.queue-timeout-ms:5000}")
+    private long interactiveQueueTimeoutMillis;
+
+    @Value("${ai.client.dispatch.background.max-concurrent:16}")
+    private int backgroundMaxConcurrent;
+
+    @Value("${ai.client.dispatch.background.max-queue:200}")
+    private int backgroundMaxQueue;
+
+    @Value("${ai.client.dispatch.background.queue-timeout-ms:60000}")
+    private long backgroundQueueTimeoutMillis;
+
+    private final Map<Priority, Integer> running = new EnumMap<>(Priority.class);
+
+    private final Map<Priority, Deque<Waiter>> queues = new EnumMap<>(Priority.class);
+
+    private final Map<Priority, Timer> waitTimers = new EnumMap<>(Priority.class);
+
+    private int totalRunning;
+
+    /**
+     * 排队中的调用
+     */
+    private static class Waiter {
+        private final MonoSink<Permit> sink;
+        private Permit permit;
+        private boolean cancelled;
+
+        private Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * 一个并发名额，只会归还一次
+     */
+    private class Permit {
+        private final Priority priority;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Priority priority) {
+            this.priority = priority;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                onRelease(priority);
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        for (Priority priority : Priority.values()) {
+            running.put(priority, 0);
+            queues.put(priority, new ArrayDeque<>());
+            waitTimers.put(priority, Timer.builder("ai.client.dispatch.wait")
+                    .tag("priority", priority.name())
+                    .register(meterRegistry));
+            Gauge.builder("ai.client.dispatch.running", this, dispatcher -> dispatcher.runningCount(priority))
+                    .tag("priority", priority.name())
+                    .register(meterRegistry);
+            Gauge.builder("ai.client.dispatch.queued", this, dispatcher -> dispatcher.queuedCount(priority))
+                    .tag("priority", priority.name())
+                    .register(meterRegistry);
+        }
+        logger.info("模型服务并发名额{}个，其中后台调用最多{}个", maxConcurrent, backgroundMaxConcurrent);
+    }
+
+    /**
+     * 流式调用，整个流结束或取消时归还名额
+     */
+    public <T> Flux<T> stream(Priority priority, Flux<T> call) {
+        return Flux.usingWhen(acquire(priority), permit -> call, permit -> Mono.fromRunnable(permit::release));
+    }
+
+    /**
+     * 单次调用，调用结束或取消时归还名额
+     */
+    public <T> Mono<T> call(Priority priority, Mono<T> call) {
+        return Mono.usingWhen(acquire(priority), permit -> call, permit -> Mono.fromRunnable(permit::release));
+    }
+
+    private Mono<Permit> acquire(Priority priority) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return Mono.<Permit>create(sink -> {
+                Waiter waiter = new Waiter(sink);
+                sink.onCancel(() -> cancel(waiter));
+                boolean rejected = false;
+                synchronized (this) {
+                    if (waiter.cancelled) {
+                        return;
+                    }
+                    if (queuedAhead(priority) == 0 && canRun(priority)) {
+                        waiter.permit = start(priority);
+                    } else if (queues.get(priority).size() >= maxQueue(priority)) {
+                        rejected = true;
+                    } else {
+                        queues.get(priority).addLast(waiter);
+                    }
+                }
+                if (rejected) {
+                    sink.error(reject(priority, "排队已满"));
+                } else if (waiter.permit != null) {
+                    sink.success(waiter.permit);
+                }
+            })
+            .doOnNext(permit -> waitTimers.get(priority).record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+            .timeout(Duration.ofMillis(queueTimeoutMillis(priority)),
+                    Mono.defer(() -> Mono.error(reject(priority, "排队超时"))));
+        });
+    }
+
+    /**
+     * 取消排队；名额已分配但没有交给调用方时归还
+     */
+    private void cancel(Waiter waiter) {
+        Permit permit;
+        synchronized (this) {
+            if (waiter.permit == null) {
+                waiter.cancelled = true;
+                for (Deque<Waiter> queue : queues.values()) {
+                    queue.remove(waiter);
+                }
+                return;
+            }
+            permit = waiter.permit;
+        }
+        permit.release();
+    }
+
+    private void onRelease(Priority priority) {
+        Deque<Waiter> granted = new ArrayDeque<>();
+        synchronized (this) {
+            running.merge(priority, -1, Integer::sum);
+            totalRunning--;
+            for (Priority next : Priority.values()) {
+                Deque<Waiter> queue = queues.get(next);
+                while (!queue.isEmpty() && canRun(next)) {
+                    Waiter waiter = queue.pollFirst();
+                    if (waiter.cancelled) {
+                        continue;
+                    }
+                    waiter.permit = start(next);
+                    granted.add(waiter);
+                }
+            }
+        }
+        // 在锁外通知调用方，调用方可能在当前线程直接发起请求
+        for (Waiter waiter : granted) {
+            waiter.sink.success(waiter.permit);
+        }
+    }
+
+    private Permit start(Priority priority) {
+        running.merge(priority, 1, Integer::sum);
+        totalRunning++;
+        return new Permit(priority);
+    }
+
+    private boolean canRun(Priority priority) {
+        if (totalRunning >= maxConcurrent) {
+            return false;
+        }
+        return priority != Priority.BACKGROUND || running.get(priority) < backgroundMaxConcurrent;
+    }
+
+    /**
+     * 优先级不低于 priority 的排队调用数，新调用不插队
+     */
+    private int queuedAhead(Priority priority) {
+        int queued = 0;
+        for (Priority other : Priority.values()) {
+            if (other.ordinal() <= priority.ordinal()) {
+                queued += queues.get(other).size();
+            }
+        }
+        return queued;
+    }
+
+    private DispatchRejectedException reject(Priority priority, String reason) {
+        meterRegistry.counter("ai.client.dispatch.rejected", "priority", priority.name()).increment();
+        logger.warn("模型服务{}调用{}，运行中{}个", priority, reason, runningCount(priority));
+        return new DispatchRejectedException(priority, reason);
+    }
+
+    private int maxQueue(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveMaxQueue : backgroundMaxQueue;
+    }
+
+    private long queueTimeoutMillis(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveQueueTimeoutMillis : backgroundQueueTimeoutMillis;
+    }
+
+    private synchronized int runningCount(Priority priority) {
+        return running.get(priority);
+    }
+
+    private synchronized int queuedCount(Priority priority) {
+        return queues.get(priority).size();
+    }
+}
@@ -0,0 +1,259 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ConnectTimeoutException;
+import org.example.backendai.util.CircuitBreaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import jakarta.annotation.PostConstruct;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * 模型服务调用的重试、超时和熔断策略
+ *
+ * <p>按调用类型区分：</p>
+ * <ul>
+ *   <li>流式生成：只在建立连接阶段失败（连接被拒绝、连接超时、域名解析失败、等待连接池超时）时重试，
+ *       这时请求体还没有发出；请求发出后连接断开的不重试，避免同一请求在模型服务上生成两次</li>
+ *   <li>非流式生成：与流式生成相同</li>
+ *   <li>幂等查询（分类接口、向量检索）：请求未送达以及 502/503/504 时重试</li>
+ * </ul>
+ *
+ * <p>重试按带随机抖动的指数退避，最多 max-attempts 次。</p>
+ *
+ * <p>所有调用共用一个熔断器，模型服务连续失败时在 open-seconds 内直接失败，
+ * 流式对话由 {@link AIApiService#processChatStream} 返回后备回复，不再向模型服务发送请求，
+ * 避免故障期间的重试放大GPU负载。4xx响应不计入失败。</p>
+ *
+ * <p>指标：ai.client.circuit.state（0 CLOSED，1 OPEN，2 HALF_OPEN）、ai.client.circuit.rejected、
+ * ai.client.retry{type}。</p>
+ */
+@Service
+public class ModelCallGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelCallGuard.class);
+
+    private static final String RETRY_METRIC = "ai.client.retry";
+
+    /**
+     * 熔断器打开时调用失败的异常
+     */
+    public static class CircuitOpenException extends RuntimeException {
+        public CircuitOpenException() {
+            super("AI服务暂时不可用，熔断器已打开");
+        }
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${ai.client.timeout.stream-seconds:600}")
+    private long streamTimeoutSeconds;
+
+    @Value("${ai.client.timeout.generate-seconds:100}")
+    private long generateTimeoutSeconds;
+
+    @Value("${ai.client.timeout.lookup-seconds:30}")
+    private long lookupTimeoutSeconds;
+
+    @Value("${ai.client.retry.max-attempts:2}")
+    private int maxRetries;
+
+    @Value("${ai.client.retry.min-backoff-ms:200}")
+    private long minBackoffMillis;
+
+    @Value("${ai.client.retry.max-backoff-ms:2000}")
+    private long maxBackoffMillis;
+
+    @Value("${ai.client.circuit-breaker.window-size:20}")
+    private int windowSize;
+
+    @Value("${ai.client.circuit-breaker.min-calls:10}")
+    private int minCalls;
+
+    @Value("${ai.client.circuit-breaker.failure-rate:0.5}")
+    private double failureRate;
+
+    @Value("${ai.client.circuit-breaker.open-seconds:30}")
+    private long openSeconds;
+
+    @Value("${ai.client.circuit-breaker.half-open-calls:2}")
+    private int halfOpenCalls;
+
+    private CircuitBreaker circuitBreaker;
+
+    @PostConstruct
+    public void init() {
+        circuitBreaker = new CircuitBreaker(windowSize, minCalls, failureRate,
+                Duration.ofSeconds(openSeconds).toMillis(), halfOpenCalls, System::currentTimeMillis,
+                state -> logger.warn("模型服务熔断器状态变为 {}", state));
+        Gauge.builder("ai.client.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .register(meterRegistry);
+    }
+
+    /**
+     * 流式生成：只在收到第一个元素前、建立连接阶段失败时重试，第一个元素到达即视为调用成功，之后出错另计一次失败
+     */
+    public <T> Flux<T> stream(Flux<T> call) {
+        return Flux.defer(() -> {
+            if (!circuitBreaker.tryAcquire()) {
+                return Flux.error(rejectedCall());
+            }
+            AtomicBoolean received = new AtomicBoolean(false);
+            AtomicBoolean finished = new AtomicBoolean(false);
+            return call
+                    .doOnNext(item -> {
+                        if (received.compareAndSet(false, true)) {
+                            finished.set(true);
+                            circuitBreaker.onSuccess();
+                        }
+                    })
+                    .retryWhen(connectionRetry("stream", error -> !received.get()))
+                    .timeout(Duration.ofSeconds(streamTimeoutSeconds))
+                    .doOnError(error -> {
+                        if (isBackendFailure(error)) {
+                            finished.set(true);
+                            circuitBreaker.onFailure();
+                        }
+                    })
+                    .doFinally(signal -> finish(finished));
+        });
+    }
+
+    /**
+     * 非流式生成：只在建立连接阶段失败时重试
+     */
+    public <T> Mono<T> generate(Mono<T> call) {
+        return guard(call.retryWhen(connectionRetry("generate", error -> true)), generateTimeoutSeconds);
+    }
+
+    /**
+     * 幂等查询：连接失败和网关类错误按带抖动的指数退避重试
+     */
+    public <T> Mono<T> lookup(Mono<T> call) {
+        return guard(call.retryWhen(backoff("lookup", ModelCallGuard::isTransient)), lookupTimeoutSeconds);
+    }
+
+    private <T> Mono<T> guard(Mono<T> call, long timeoutSeconds) {
+        return Mono.defer(() -> {
+            if (!circuitBreaker.tryAcquire()) {
+                return Mono.error(rejectedCall());
+            }
+            AtomicBoolean finished = new AtomicBoolean(false);
+            return call
+                    .timeout(Duration.ofSeconds(timeoutSeconds))
+                    .doOnSuccess(value -> {
+                        finished.set(true);
+                        circuitBreaker.onSuccess();
+                    })
+                    .doOnError(error -> {
+                        if (isBackendFailure(error)) {
+                            finished.set(true);
+                            circuitBreaker.onFailure();
+                        }
+                    })
+                    .doFinally(signal -> finish(finished));
+        });
+    }
+
+    private CircuitOpenException rejectedCall() {
+        meterRegistry.counter("ai.client.circuit.rejected").increment();
+        return new CircuitOpenException();
+    }
+
+    /**
+     * 取消或不计入熔断的错误结束时归还试探名额
+     */
+    private void finish(AtomicBoolean finished) {
+        if (!finished.get()) {
+            circuitBreaker.release();
+        }
+    }
+
+    /**
+     * 只在建立连接阶段失败时重试
+     *
+     * @param type 调用类型，用于指标
+     * @param allowed 是否还允许重试
+     */
+    private Retry connectionRetry(String type, Predicate<Throwable> allowed) {
+        return backoff(type, error -> isConnectFailure(error) && allowed.test(error));
+    }
+
+    /**
+     * 带随机抖动的指数退避，避免故障恢复时所有请求同时重试
+     */
+    private Retry backoff(String type, Predicate<Throwable> retryable) {
+        return Retry.backoff(maxRetries, Duration.ofMillis(minBackoffMillis))
+                .maxBackoff(Duration.ofMillis(maxBackoffMillis))
+                .jitter(0.5)
+                .filter(retryable)
+                .doBeforeRetry(signal -> onRetry(type, signal.failure()))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private void onRetry(String type, Throwable error) {
+        logger.warn("模型服务{}调用失败，重试: {}", type, error.getMessage());
+        meterRegistry.counter(RETRY_METRIC, "type", type).increment();
+    }
+
+    /**
+     * 是否在发出请求之前失败
+     *
+     * <p>WebClientRequestException 也用于请求已写出、响应到达前连接被关闭的情况，这时模型服务可能已经开始生成，
+     * 只按原因判断：连接被拒绝、连接超时、域名解析失败，或等待连接池超时（连接池的 TimeoutException）。</p>
+     */
+    private static boolean isConnectFailure(Throwable error) {
+        if (!(error instanceof WebClientRequestException)) {
+            return false;
+        }
+        for (Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof ConnectTimeoutException
+                    || cause instanceof UnknownHostException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 请求未送达或网关类错误，可以安全重试幂等请求
+     */
+    private static boolean isTransient(Throwable error) {
+        if (error instanceof WebClientRequestException) {
+            return true;
+        }
+        if (error instanceof WebClientResponseException) {
+            int status = ((WebClientResponseException) error).getStatusCode().value();
+            return status == 502 || status == 503 || status == 504;
+        }
+        return false;
+    }
+
+    /**
+     * 是否计入熔断失败：4xx是请求本身的问题，不计入
+     */
+    private static boolean isBackendFailure(Throwable error) {
+        if (error instanceof WebClientResponseException) {
+            return ((WebClientResponseException) error).getStatusCode().is5xxServerError();
+        }
+        return !(error instanceof CircuitOpenException);
+    }
+}
@@ -0,0 +1,363 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.example.backendai.util.LatencyWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 模型服务多节点路由
+ *
+ * <p>模型服务地址由 ai.endpoints.urls 配置，可以有多个节点，每个节点的连接池相互独立：</p>
+ * <ul>
+ *   <li>流式对话：同一会话优先发往上次使用的节点，复用节点上的KV缓存；新会话或原节点不可用时选择进行中请求最少的节点</li>
+ *   <li>短调用（问题分类、向量检索）：发往进行中请求最少的节点，超过该类调用最近的 p95 耗时仍未返回时，
+ *       向另一个节点再发一次，取先返回的结果，另一个请求被取消。只有一个可用节点时不发送第二个请求</li>
+ *   <li>健康检查：每 health-interval-seconds 秒探测一次所有节点，无响应或返回5xx的节点不再分配请求；
+ *       连续 failure-threshold 次连接失败的节点也会立即摘除，等下一次健康检查恢复</li>
+ * </ul>
+ *
+ * <p>指标：ai.endpoint.outstanding{endpoint}（进行中请求）、ai.endpoint.healthy{endpoint}（1可用，0不可用）、
+ * ai.client.hedge{type, result}（fired 发出第二个请求，won 第二个请求先返回）。</p>
+ */
+@Service
+public class ModelEndpointRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelEndpointRouter.class);
+
+    private static final String HEDGE_METRIC = "ai.client.hedge";
+
+    /**
+     * 耗时记录少于这个次数时使用 hedge.default-delay-ms
+     */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /**
+     * 模型服务节点
+     */
+    public static class Endpoint {
+
+        private final String baseUrl;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger connectFailures = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        private Endpoint(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        /**
+         * @param path 以 / 开头的接口路径，如 /generate
+         */
+        public String url(String path) {
+            return baseUrl + path;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private HttpClient modelHttpClient;
+
+    @Value("${ai.endpoints.urls:${custom-model.api-base}}")
+    private String[] endpointUrls;
+
+    @Value("${ai.endpoints.health-path:}")
+    private String healthPath;
+
+    @Value("${ai.endpoints.health-interval-seconds:10}")
+    private long healthIntervalSeconds;
+
+    @Value("${ai.endpoints.health-timeout-ms:2000}")
+    private long healthTimeoutMillis;
+
+    @Value("${ai.endpoints.failure-threshold:3}")
+    private int failureThreshold;
+
+    @Value("${ai.endpoints.sticky.ttl-minutes:30}")
+    private long stickyTtlMinutes;
+
+    @Value("${ai.endpoints.sticky.max-entries:10000}")
+    private long stickyMaxEntries;
+
+    @Value("${ai.client.hedge.enabled:true}")
+    private boolean hedgeEnabled;
+
+    @Value("${ai.client.hedge.window-size:200}")
+    private int hedgeWindowSize;
+
+    @Value("${ai.client.hedge.default-delay-ms:500}")
+    private long hedgeDefaultDelayMillis;
+
+    @Value("${ai.client.hedge.min-delay-ms:50}")
+    private long hedgeMinDelayMillis;
+
+    @Value("${ai.client.hedge.max-delay-ms:3000}")
+    private long hedgeMaxDelayMillis;
+
+    private List<Endpoint> endpoints;
+
+    /**
+     * 会话ID -> 上次使用的节点
+     */
+    private Cache<String, Endpoint> stickyEndpoints;
+
+    /**
+     * 调用类型 -> 最近耗时
+     */
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * 选择节点时的起始位置，进行中请求数相同时轮流选择
+     */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private Disposable healthCheck;
+
+    @PostConstruct
+    public void init() {
+        List<Endpoint> configured = new ArrayList<>();
+        for (String url : endpointUrls) {
+            String baseUrl = url.trim();
+            while (baseUrl.endsWith("/")) {
+                baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+            }
+            if (baseUrl.isEmpty()) {
+                continue;
+            }
+            Endpoint endpoint = new Endpoint(baseUrl);
+            configured.add(endpoint);
+            Gauge.builder("ai.endpoint.outstanding", endpoint, Endpoint::getOutstanding)
+                    .tag("endpoint", baseUrl)
+                    .register(meterRegistry);
+            Gauge.builder("ai.endpoint.healthy", endpoint, e -> e.isHealthy() ? 1 : 0)
+                    .tag("endpoint", baseUrl)
+                    .register(meterRegistry);
+        }
+        if (configured.isEmpty()) {
+            throw new IllegalStateException("未配置模型服务地址 ai.endpoints.urls");
+        }
+        endpoints = Collections.unmodifiableList(configured);
+        stickyEndpoints = Caffeine.newBuilder()
+                .expireAfterAccess(stickyTtlMinutes, TimeUnit.MINUTES)
+                .maximumSize(stickyMaxEntries)
+                .build();
+        if (healthIntervalSeconds > 0) {
+            healthCheck = Flux.interval(Duration.ofSeconds(healthIntervalSeconds))
+                    .onBackpressureDrop()
+                    .concatMap(tick -> checkHealth())
+                    .subscribe();
+        }
+        logger.info("模型服务节点: {}", endpoints.stream().map(Endpoint::getBaseUrl).toList());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (healthCheck != null) {
+            healthCheck.dispose();
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * 流式调用，同一会话优先使用上次的节点
+     *
+     * @param sessionId 会话ID，为空时按进行中请求数选择
+     * @param call 向指定节点发起请求，订阅后才发送
+     */
+    public <T> Flux<T> stream(String sessionId, Function<Endpoint, Flux<T>> call) {
+        return Flux.defer(() -> {
+            Endpoint endpoint = sessionEndpoint(sessionId);
+            endpoint.outstanding.incrementAndGet();
+            return call.apply(endpoint)
+                    .doOnNext(item -> endpoint.connectFailures.set(0))
+                    .doOnError(error -> onError(endpoint, error))
+                    .doFinally(signal -> endpoint.outstanding.decrementAndGet());
+        });
+    }
+
+    /**
+     * 单次调用，发往进行中请求最少的节点
+     */
+    public <T> Mono<T> call(Function<Endpoint, Mono<T>> call) {
+        return Mono.defer(() -> track(choose(null), call, null));
+    }
+
+    /**
+     * 对冲调用：超过该类调用最近的 p95 耗时未返回时向另一个节点再发一次，取先返回的结果。
+     * 只能用于幂等请求
+     *
+     * @param type 调用类型，分别统计耗时
+     */
+    public <T> Mono<T> hedged(String type, Function<Endpoint, Mono<T>> call) {
+        return Mono.defer(() -> {
+            LatencyWindow latency = latencies.computeIfAbsent(type, key -> new LatencyWindow(hedgeWindowSize));
+            Endpoint primary = choose(null);
+            Mono<T> first = track(primary, call, latency);
+            if (!hedgeEnabled || choose(primary) == null) {
+                return first;
+            }
+            Duration delay = hedgeDelay(latency);
+            Mono<T> second = Mono.delay(delay)
+                    .flatMap(tick -> {
+                        Endpoint backup = choose(primary);
+                        if (backup == null) {
+                            return Mono.<T>empty();
+                        }
+                        meterRegistry.counter(HEDGE_METRIC, "type", type, "result", "fired").increment();
+                        logger.debug("{}调用超过{}ms未返回，发往另一个节点: {}", type, delay.toMillis(), backup.getBaseUrl());
+                        return track(backup, call, latency)
+                                .doOnNext(value -> meterRegistry.counter(HEDGE_METRIC, "type", type, "result", "won").increment());
+                    });
+            // 两个请求都失败时返回第一个请求的错误，便于外层按原因决定是否重试
+            return Mono.firstWithValue(first, second)
+                    .onErrorMap(error -> error.getCause() != null && Exceptions.isMultiple(error.getCause()),
+                            error -> Exceptions.unwrapMultiple(error.getCause()).get(0));
+        });
+    }
+
+    private Duration hedgeDelay(LatencyWindow latency) {
+        long delay = latency.size() < MIN_LATENCY_SAMPLES ? hedgeDefaultDelayMillis : latency.percentile(0.95);
+        return Duration.ofMillis(Math.min(hedgeMaxDelayMillis, Math.max(hedgeMinDelayMillis, delay)));
+    }
+
+    private <T> Mono<T> track(Endpoint endpoint, Function<Endpoint, Mono<T>> call, LatencyWindow latency) {
+        return Mono.defer(() -> {
+            endpoint.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            return call.apply(endpoint)
+                    .doOnSuccess(value -> {
+                        endpoint.connectFailures.set(0);
+                        if (latency != null) {
+                            latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        }
+                    })
+                    .doOnError(error -> onError(endpoint, error))
+                    .doFinally(signal -> endpoint.outstanding.decrementAndGet());
+        });
+    }
+
+    /**
+     * 会话上次使用的节点，不可用时重新选择
+     */
+    private Endpoint sessionEndpoint(String sessionId) {
+        if (sessionId == null || endpoints.size() == 1) {
+            return choose(null);
+        }
+        Endpoint endpoint = stickyEndpoints.getIfPresent(sessionId);
+        if (endpoint == null || !endpoint.healthy) {
+            endpoint = choose(null);
+            stickyEndpoints.put(sessionId, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * 选择进行中请求最少的可用节点，数量相同时轮流选择
+     *
+     * @param exclude 不选择的节点，可以为null
+     * @return 节点；exclude 为null且没有可用节点时退回到全部节点中选择，exclude 不为null且没有其他可用节点时返回null
+     */
+    private Endpoint choose(Endpoint exclude) {
+        Endpoint best = pick(exclude, true);
+        if (best == null && exclude == null) {
+            best = pick(null, false);
+        }
+        return best;
+    }
+
+    private Endpoint pick(Endpoint exclude, boolean healthyOnly) {
+        int size = endpoints.size();
+        int start = Math.floorMod(cursor.getAndIncrement(), size);
+        Endpoint best = null;
+        for (int i = 0; i < size; i++) {
+            Endpoint endpoint = endpoints.get((start + i) % size);
+            if (endpoint == exclude || (healthyOnly && !endpoint.healthy)) {
+                continue;
+            }
+            if (best == null || endpoint.outstanding.get() < best.outstanding.get()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 连续连接失败达到阈值时摘除节点
+     */
+    private void onError(Endpoint endpoint, Throwable error) {
+        if (error instanceof WebClientRequestException
+                && endpoint.connectFailures.incrementAndGet() >= failureThreshold) {
+            markHealthy(endpoint, false);
+        }
+    }
+
+    private Mono<Void> checkHealth() {
+        return Flux.fromIterable(endpoints)
+                .flatMap(endpoint -> modelHttpClient.head()
+                        .uri(endpoint.url(healthPath))
+                        .responseSingle((response, body) -> body.then(Mono.just(response.status().code())))
+                        .timeout(Duration.ofMillis(healthTimeoutMillis))
+                        .map(status -> status < 500)
+                        .onErrorResume(error -> {
+                            logger.debug("模型服务节点健康检查失败: {} - {}", endpoint.getBaseUrl(), error.getMessage());
+                            return Mono.just(false);
+                        })
+                        .doOnNext(healthy -> markHealthy(endpoint, healthy)))
+                .then();
+    }
+
+    private void markHealthy(Endpoint endpoint, boolean healthy) {
+        if (healthy) {
+            endpoint.connectFailures.set(0);
+        }
+        if (endpoint.healthy != healthy) {
+            endpoint.healthy = healthy;
+            if (healthy) {
+                logger.info("模型服务节点恢复: {}", endpoint.getBaseUrl());
+            } else {
+                logger.warn("模型服务节点不可用，暂停分配请求: {}", endpoint.getBaseUrl());
+            }
+        }
+    }
+}
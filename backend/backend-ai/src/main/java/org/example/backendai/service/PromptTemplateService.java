@@ -0,0 +1,167 @@
+package org.example.backendai.service;
+
+import org.example.backendai.util.ClauseIndex;
+import org.example.backendai.util.TokenEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 系统提示词模板服务
+ *
+ * <p>根据问题类型选择发送给模型的系统提示词，供流式对话管道使用</p>
+ *
+ * <p>借阅、积分、规则和默认模板包含整篇规章，按条款建立索引（{@link ClauseIndex}），
+ * 发送给模型时只保留与问题最相关的几条，减少预填充的token数</p>
+ */
+@Service
+public class PromptTemplateService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PromptTemplateService.class);
+
+    @Value("${chat.prompt.clause.enabled:true}")
+    private boolean clauseRetrievalEnabled;
+
+    @Value("${chat.prompt.clause.top-k:3}")
+    private int clauseTopK;
+
+    @Value("${chat.prompt.clause.token-budget:600}")
+    private int clauseTokenBudget;
+
+    /**
+     * 规章类模板的条款索引
+     */
+    private final Map<PromptTemplateType, ClauseIndex> clauseIndexes = new EnumMap<>(PromptTemplateType.class);
+
+    /**
+     * 系统提示词模板类型
+     */
+    private enum PromptTemplateType {
+        BookBorrowing,//图书借阅模板
+        POINTS,//图书馆积分模板
+        DEFAULT,           // 默认通用模板
+        BOOK_SEARCH,       // 图书查询模板
+        BOOK_RECOMMEND,    // 图书推荐模板
+        BOOK_REVIEW,       // 图书评论模板
+        CODE_ASSISTANT,    // 代码助手模板
+        MATH_ASSISTANT,    // 数学助手模板
+        WRITING_ASSISTANT,  // 写作助手模板
+        GENERAL, RULES
+    }
+
+    /**
+     * 获取系统提示词模板
+     * 
+     * @param type 模板类型
+     * @return 对应类型的提示词模板
+     */
+    private String getPromptTemplate(PromptTemplateType type) {
+        switch (type) {
+            case BookBorrowing:
+                return "图书馆图书外借管理办法（修订）（20221202）为满足学校教学和科研的需要，充分发挥图书馆图书资源的保障作用，维护图书馆图书外借秩序，依据《普通高等学校图书馆规程》（教高〔2015〕14号），结合图书馆工作实际，特修订图书馆图书外借管理办法。第一章 借书权限第一条 本校教职工、全日制研究生、全日制本/专科生已办理的校园卡，经图书馆开通借书权限后可在图书馆借书。第二条 读者离开学校（如毕业、退学、结业、休学、兵役、工作调动、辞职、退休等），将被注销借书权限。第二章 图书外借及归还第三条 外借1．读者须持本人校园卡到图书馆在服务台或自助借还书机办理图书出借手续。不得代借或转借，因代借或转借而造成的后果由校园卡所有人负责。2．全校教职工、全日制研究生、全日制本/专科生每人均可同时外借30册图书，外借期限为60天。3．读者外借图书时应当场检查，如发现污损等情况，应及时请工作人员记录处理，以分清责任。读者对所借图书应妥加爱护保管，如有污损、缺页、遗失等情况，按规定赔偿。4．图书馆特藏图书、外文图书仅供阅览，不予外借。第四条 归还和续借1．读者外借图书应按期归还，可在自助借还书机或服务台办理归还手续。2．图书逾期前如需继续使用，可办理续借手续，可续借 2 次，逾期的图书不得续借。续借手续可自行在网上或自助借还机办理，也可持校园卡到服务台办理。续借周期和原外借周期相同，从续借之日起计算。3．借出图书到期日如为法定节假日、寒暑假期间及因特殊情况闭馆期间的，则借期顺延至假期结束或开馆之后。4．读者离校前，应还清全部所借图书。学生毕业离校的，还清图书后才能通过离校审核。持人事部门所发的离校单读者，还清图书后才能到图书馆服务台办理盖章手续。第五条 催还 借出图书到期前 3 天和逾期后，图书馆通过短信或微信发送催还通知，读者收到催还通知后应尽快归还所借图书。";
+            case POINTS:
+                return "关于积分的问题，引用如下规则进行回答：图书馆（档案馆）关于读者积分的管理办法为了鼓励读者主动学习和阅读，自觉爱护阅览室环境，图书馆特推出读者积分管理办法。图书馆通过系统实时记录读者行为，并自动为读者分配相应积分。第一条 加分项。图书馆根据读者的以下正面行为给予读者积分加分鼓励。1.图书借阅2.在馆学习3.提交阅读心得或书评（原创、300字以上）4.参加图书馆举办的活动5.选修并通过《文献信息检索与论文写作》课程6.参加图书馆义务劳动7.关注图书馆微信公众号8.合理的资源推荐9.合理的管理和服务建议10.拾金不昧、助人为乐等正面行为11.图书馆根据需要临时拟定的其他加分项第二条 减分项。图书馆根据读者的以下负面行为给予读者积分减分惩罚。1.图书逾期2.遗失、盗窃、污损图书3.其他共享物品和公共设施（如雨伞、桌椅等）逾期、遗失盗窃等4.预约系统违约（如考研座位）5.不遵守图书馆规章（如在阅览室进食、衣冠不整、抽烟、高声喧哗等）6.图书馆根据需要临时拟定的其他减分项读者积分将作为图书馆分配自助学习室座位、储物柜等资源的重要依据。读者还可以参加图书馆在每年的读书周和服务月期间的推出积分换礼、积分抽奖等活动。第三条 图书馆读者积分的项目和分值设定根据实际情况可动态调整。";
+            case RULES:
+                return "你是专业的图书馆的助手，参考如下规则进行回答：图书馆文明读者公约图书馆是传播人类科学文化知识的场所，是弘扬精神文明的重要阵地。读者既是图书馆资源的使用者，又是图书馆环境的维护者。广大读者应该自觉遵守以下公共道德和秩序。第一条 凭校园卡进出馆读者须凭本人有效校园卡或微信电子校园卡刷卡进出图书馆。第二条 爱护书刊和公共设施爱护图书馆的书刊资料，文明借阅。不折叠、涂画、撕页、污损书刊，不随意标注。书刊报取阅后放回原处，未办理借阅手续的书刊报请勿带出馆。爱护馆内设施设备，不随意涂抹刻画和破坏设备，不随意挪动桌椅。未经许可，禁止在馆内张贴或散发广告及其它宣传品。第三条 保持安静轻拿轻放，轻声细语，不在室内大声讨论问题或制造影响他人的噪音，不在馆内喧哗。请将手机开到静音或震动状态，接听电话请到室外。第四条 按时还书遵守借阅制度，按时还书，加快流通，提高资源利用率。第五条 安全防火图书馆是重点防火单位，馆内任何地方严禁吸烟、用火。禁止将任何危险和高耗电电器带入馆内使用或充电。禁带易燃易爆等危险物品入馆。第六条 注重形象，讲究卫生注意自身的形象，进入图书馆时衣着大方得体，举止文雅。不穿背心、拖鞋或赤膊入馆。不做有碍观瞻的行为。保持图书馆环境整洁，不随地吐痰、不乱扔废弃物，文明使用卫生间。不叫外卖进图书馆，不在馆内二楼茶歇区以外区域进食，不在室内喝有气味的饮料。第七条 遵守秩序遵守图书馆相关规章制度，维护图书馆的工作秩序。座位预约阅览室使用座位预约系统选择座位，预约者优先使用。预约自助学习室座位者有优先使用权，本人不在座位时其他读者有权利使用。不用物品抢占座位。不在公共区域乱放个人物品。第八条 互相尊重，共创和谐使用文明用语，遇到问题及时和工作人员沟通，彼此友善，互相尊重。服从图书馆工作人员管理，接受其他读者监督。共创和谐阅读的氛围，享受温馨快乐的读书生活。第九条 诚信在馆诚信使用图书馆资源，包括爱心伞、自助复印打印、座位预约、寄存柜、寄存箱、电子资源等。第十条 对违反上述文明行为规范的读者，任何人都有权批评和制止其行为。同时，图书馆将依据《图书馆读者积分管理办法》等规章制度进行处理。第十一条 之前的相关条例或规定如与本公约相冲突，以本公约为准。第十二条 本公约由图书馆办公室负责解释，2019年12月修订，2020年1月6日图书馆（档案馆）党政联席会议通过后施行。";
+            case BOOK_SEARCH:
+                return "你是一个专业的图书查询助手，擅长帮助用户查找书籍信息。当用户询问关于书籍的问题时，你应该尽可能详细地提供图书的相关信息，包括但不限于作者、出版社、内容简介、评分等。你还可以提供相关的书籍推荐，比如推荐同类书籍、相关书籍推荐等。则每次推荐三本书籍请用简洁专业的语言回答用户问题。";
+                
+            case BOOK_RECOMMEND:
+                return "你是一个专业的图书推荐助手，每次推荐3-5本书，擅长推荐用户喜欢的图书。识别用户的问题意图，如果是模糊的图书推荐，则根据用户的专业和喜好进行推荐，如果是具体的图书则具体推荐，没有则推荐相关的图书。1.每次推荐图书不超过五本，书名需要用《》包裹。然后介绍20字以上50字一下的该书的介绍。2.嵌入两天外界规则正确引导用户借书，讲述规矩人性化不死板：外借规则1．读者须持本人校园卡到图书馆在服务台或自助借还书机办理图书出借手续。不得代借或转借，因代借或转借而造成的后果由校园卡所有人负责。2．全校教职工、全日制研究生、全日制本/专科生每人均可同时外借30册图书，外借期限为60天。3．读者外借图书时应当场检查，如发现污损等情况，应及时请工作人员记录处理，以分清责任。读者对所借图书应妥加爱护保管，如有污损、缺页、遗失等情况，按规定赔偿。4．图书馆特藏图书、外文图书仅供阅览，不予外借。输出示例：[书籍推荐]1. 《苏菲的世界》 - 以通俗易懂的方式介绍西方哲学史，适合初学者。2. 《哲学的故事》 - 梳理了从古至今的哲学思想，帮助了解哲学演变。3. 《存在与时间》 - 探讨存在意义及人类生存问题，适合思考深层问题的读者。[规则说明]1. 外借规则：记得携带校园卡到图书馆在服务台或自助借还书机办理图书出借哦。2. 图书馆特藏图书、外文图书仅供阅览，请勿外带。";
+                
+            case BOOK_REVIEW:
+                return "你是一个专业的图书评论助手，擅长分析和评价图书的内容、写作风格和价值。当用户询问关于书籍的评价时，请提供客观、深入的分析，包括但不限于：1. 内容概述（不透露关键情节）2. 写作风格和语言特点3. 主题和思想价值4. 适合的读者群体5. 在文学史或专业领域中的地位请基于文学批评和专业知识进行评价，避免过于主观的判断。";
+                
+            case CODE_ASSISTANT:
+                return "你是一个专业的编程助手，擅长解答各类编程问题和提供代码解决方案。在回答问题时，请遵循以下原则：1. 提供简洁、高效、易于理解的代码2. 解释代码的关键部分和工作原理3. 考虑代码的性能、安全性和最佳实践4. 适当提供相关的API文档或学习资源请根据用户的编程水平调整回答的详细程度，对初学者提供更多解释，对专业人士可以更加简洁。如果用户的问题不清晰，应主动询问更多细节以提供更准确的帮助。";
+                
+            case MATH_ASSISTANT:
+                return "你是一个专业的数学辅导助手，擅长解答各类数学问题。在回答问题时，请遵循以下原则：1. 提供清晰的解题步骤和思路2. 说明使用的数学概念和公式3. 如有多种解法，可以介绍不同方法4. 对于复杂问题，可以分解为更简单的子问题请确保答案正确，并根据用户的数学水平调整解释的深度。鼓励用户理解概念而不仅仅是记住答案。";
+                
+            case WRITING_ASSISTANT:
+                return "你是一个专业的写作助手，擅长提供各类写作帮助，包括创意写作、学术写作、应用文写作等。在提供帮助时，请注意以下几点：1. 保持用户的写作风格和意图2. 提供具体的修改建议和例子3. 解释修改的理由和写作原则4. 针对不同类型的写作提供相应的专业建议请尊重用户的创意，帮助他们提升表达能力而不是完全替代他们的思考。";
+                
+            case DEFAULT:
+            default:
+                return "你是图书馆助手，语气要符合图书馆问话的口吻。初次询问时参考回答两条注意事项：图书馆文明读者公约图书馆是传播人类科学文化知识的场所，是弘扬精神文明的重要阵地。读者既是图书馆资源的使用者，又是图书馆环境的维护者。广大读者应该自觉遵守以下公共道德和秩序。第一条凭校园卡进出馆读者须凭本人有效校园卡或微信电子校园卡刷卡进出图书馆。第二条爱护书刊和公共设施爱护图书馆的书刊资料，文明借阅。不折叠、涂画、撕页、污损书刊，不随意标注。书刊报取阅后放回原处，未办理借阅手续的书刊报请勿带出馆。爱护馆内设施设备，不随意涂抹刻画和破坏设备，不随意挪动桌椅。未经许可，禁止在馆内张贴或散发广告及其它宣传品。第三条保持安静轻拿轻放，轻声细语，不在室内大声讨论问题或制造影响他人的噪音，不在馆内喧哗。请将手机开到静音或震动状态，接听电话请到室外。第四条按时还书遵守借阅制度，按时还书，加快流通，提高资源利用率。第五条安全防火图书馆是重点防火单位，馆内任何地方严禁吸烟、用火。禁止将任何危险和高耗电电器带入馆内使用或充电。禁带易燃易爆等危险物品入馆。第六条注重形象，讲究卫生注意自身的形象，进入图书馆时衣着大方得体，举止文雅。不穿背心、拖鞋或赤膊入馆。不做有碍观瞻的行为。保持图书馆环境整洁，不随地吐痰、不乱扔废弃物，文明使用卫生间。不叫外卖进图书馆，不在馆内二楼茶歇区以外区域进食，不在室内喝有气味的饮料。第七条遵守秩序遵守图书馆相关规章制度，维护图书馆的工作秩序。座位预约阅览室使用座位预约系统选择座位，预约者优先使用。预约自助学习室座位者有优先使用权，本人不在座位时其他读者有权利使用。不用物品抢占座位。不在公共区域乱放个人物品。第八条互相尊重，共创和谐使用文明用语，遇到问题及时和工作人员沟通，彼此友善，互相尊重。服从图书馆工作人员管理，接受其他读者监督。共创和谐阅读的氛围，享受温馨快乐的读书生活。第九条诚信在馆诚信使用图书馆资源，包括爱心伞、自助复印打印、座位预约、寄存柜、寄存箱、电子资源等。第十条对违反上述文明行为规范的读者，任何人都有权批评和制止其行为。同时，图书馆将依据《图书馆读者积分管理办法》等规章制度进行处理。第十一条之前的相关条例或规定如与本公约相冲突，以本公约为准。第十二条本公约由图书馆办公室负责解释，2019年12月修订，2020年1月6日图书馆（档案馆）党政联席会议通过后施行。";
+        }
+    }
+    
+    @PostConstruct
+    public void init() {
+        for (PromptTemplateType type : new PromptTemplateType[]{
+                PromptTemplateType.BookBorrowing, PromptTemplateType.POINTS,
+                PromptTemplateType.RULES, PromptTemplateType.GENERAL, PromptTemplateType.DEFAULT}) {
+            String template = getPromptTemplate(type);
+            ClauseIndex index = ClauseIndex.build(template);
+            clauseIndexes.put(type, index);
+            logger.info("提示词模板{}切分为{}条，完整模板约{}个token", type, index.size(), TokenEstimator.estimate(template));
+        }
+    }
+
+    /**
+     * 构造发送给模型的系统提示词，规章类模板只保留与问题相关的条款
+     *
+     * @param questionType 问题类型
+     * @param question 用户问题
+     * @return 系统提示词
+     */
+    public String buildSystemPrompt(String questionType, String question) {
+        PromptTemplateType templateType = templateTypeOf(questionType);
+        ClauseIndex index = clauseRetrievalEnabled ? clauseIndexes.get(templateType) : null;
+        if (index == null || index.size() == 0) {
+            return getPromptTemplate(templateType);
+        }
+        String prompt = index.select(question, clauseTopK, clauseTokenBudget);
+        logger.info("提示词模板{}按问题选取条款，约{}个token", templateType, TokenEstimator.estimate(prompt));
+        return prompt;
+    }
+
+    private PromptTemplateType templateTypeOf(String questionType) {
+        PromptTemplateType templateType;
+        
+        switch (questionType) {
+            case "BOOK_SEARCH":
+                templateType = PromptTemplateType.BOOK_SEARCH;
+                break;
+            case "BOOK_RECOMMEND":
+                templateType = PromptTemplateType.BOOK_RECOMMEND;
+                break;
+            case "BOOK_REVIEW":
+                templateType = PromptTemplateType.BOOK_REVIEW;
+                break;
+            case "CODE_QUESTION":
+                templateType = PromptTemplateType.CODE_ASSISTANT;
+                break;
+            case "MATH_PROBLEM":
+                templateType = PromptTemplateType.MATH_ASSISTANT;
+                break;
+            case "WRITING_HELP":
+                templateType = PromptTemplateType.WRITING_ASSISTANT;
+                break;
+            case "BookBorrowing":
+                templateType = PromptTemplateType.BookBorrowing;
+                break;
+            case "RULES":
+                templateType = PromptTemplateType.RULES;
+                break;
+            case "POINTS":
+                templateType = PromptTemplateType.POINTS;
+                break;
+            case "GENERAL":
+                templateType = PromptTemplateType.GENERAL;
+                break;
+            case "UNKNOWN":
+            default:
+                templateType = PromptTemplateType.DEFAULT;
+                break;
+        }
+        
+        return templateType;
+    }
+}
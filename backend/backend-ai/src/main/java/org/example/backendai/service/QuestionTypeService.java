@@ -0,0 +1,145 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.example.backendai.util.NaiveBayesTextClassifier;
+import org.example.backendai.util.TextNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import jakarta.annotation.PostConstruct;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * 问题分类服务
+ *
+ * <p>按代价从低到高分三级：</p>
+ * <ol>
+ *   <li>本地字符n-gram朴素贝叶斯分类器，置信度达到阈值时直接返回</li>
+ *   <li>模型服务的分类专用接口 /analyze_type</li>
+ *   <li>通过 /generate 生成分类结果（{@link AIApiService#analyzeQuestionType}）</li>
+ * </ol>
+ *
+ * <p>本地分类器启动时用 classifier/question_types.jsonl 训练，
+ * 准确率和延迟见 classifier/evaluation-report.md。</p>
+ *
+ * <p>模型服务的分类结果按归一化后的问题文本缓存，同一问题的并发请求共用一次上游调用，
+ * 上游失败的结果不缓存。命中率见 cache.gets{cache=question_type}。</p>
+ */
+@Service
+public class QuestionTypeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuestionTypeService.class);
+
+    private static final String TRAINING_DATA = "classifier/question_types.jsonl";
+    private static final String CLASSIFIER_METRIC = "chat.classifier.requests";
+
+    @Autowired
+    private AIApiService aiApiService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.classifier.enabled:true}")
+    private boolean localEnabled;
+
+    @Value("${chat.classifier.confidence-threshold:0.7}")
+    private double confidenceThreshold;
+
+    @Value("${chat.classifier.cache.max-size:10000}")
+    private long cacheMaxSize;
+
+    @Value("${chat.classifier.cache.ttl-minutes:60}")
+    private long cacheTtlMinutes;
+
+    private NaiveBayesTextClassifier classifier;
+
+    /**
+     * 归一化问题文本 -> 模型服务的分类结果
+     */
+    private AsyncCache<String, String> upstreamCache;
+
+    @PostConstruct
+    public void init() {
+        upstreamCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(Duration.ofMinutes(cacheTtlMinutes))
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, upstreamCache, "question_type");
+
+        if (!localEnabled) {
+            logger.info("本地问题分类器已关闭，全部问题由模型服务分类");
+            return;
+        }
+        try (InputStream input = new ClassPathResource(TRAINING_DATA).getInputStream()) {
+            List<NaiveBayesTextClassifier.LabeledText> examples = NaiveBayesTextClassifier.readExamples(input);
+            classifier = NaiveBayesTextClassifier.train(examples);
+            logger.info("本地问题分类器训练完成，训练数据{}条，置信度阈值{}", examples.size(), confidenceThreshold);
+        } catch (Exception e) {
+            // 分类器不可用时退回模型服务，不影响启动
+            logger.error("加载本地问题分类器失败，全部问题由模型服务分类: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 分析问题类型
+     *
+     * @param question 用户输入
+     * @return 问题类型，三级分类都失败时以错误结束
+     */
+    public Mono<String> classify(String question) {
+        return Mono.defer(() -> {
+            if (classifier != null) {
+                NaiveBayesTextClassifier.Prediction prediction = classifier.classify(question);
+                String questionType = AIApiService.canonicalQuestionType(prediction.getLabel());
+                if (questionType != null && prediction.getConfidence() >= confidenceThreshold) {
+                    logger.info("本地分类器判定问题类型: {}", prediction);
+                    record("local");
+                    return Mono.just(questionType);
+                }
+                logger.info("本地分类器置信度不足: {}，交给模型服务分类", prediction);
+            }
+            return classifyUpstreamCached(question);
+        });
+    }
+
+    /**
+     * 查询缓存，未命中时调用模型服务分类
+     *
+     * <p>取消订阅不会取消共享的上游调用，其他等待同一问题的请求仍能拿到结果</p>
+     */
+    private Mono<String> classifyUpstreamCached(String question) {
+        String key = TextNormalizer.normalize(question);
+        if (key.isEmpty()) {
+            return classifyUpstream(question);
+        }
+        return Mono.fromFuture(upstreamCache.get(key, (k, executor) -> classifyUpstream(question).toFuture()), true);
+    }
+
+    /**
+     * 先调用分类接口 /analyze_type，失败时改用生成接口
+     */
+    private Mono<String> classifyUpstream(String question) {
+        return aiApiService.analyzeQuestionTypeByEndpoint(question)
+                .doOnNext(questionType -> record("analyze_type"))
+                .onErrorResume(error -> {
+                    logger.warn("分类接口失败，改用生成接口分类: {}", error.getMessage());
+                    return aiApiService.analyzeQuestionType(question)
+                            .doOnNext(questionType -> record("generate"));
+                });
+    }
+
+    private void record(String tier) {
+        meterRegistry.counter(CLASSIFIER_METRIC, "tier", tier).increment();
+    }
+}
@@ -0,0 +1,219 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.example.backendai.entity.ChatMessage;
+import org.example.backendai.entity.ChatSession;
+import org.example.backendai.mapper.ChatMessageMapper;
+import org.example.backendai.mapper.ChatSessionMapper;
+import org.example.backendai.util.TokenEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 长会话的滚动摘要
+ *
+ * <p>每次AI回复保存后检查会话：最近 keep-recent-messages 条消息之前，
+ * 尚未进入摘要的消息达到 refresh-every-turns 轮（每轮一问一答）时，
+ * 在后台把已有摘要和这些消息交给模型生成新摘要，写回 chat_session。</p>
+ *
+ * <p>组装上下文时摘要附加在系统提示词中，代替摘要覆盖的原始消息。
+ * 摘要在后台异步生成，不增加对话请求的延迟；生成失败时保留旧摘要，下一轮再试。</p>
+ */
+@Service
+public class SessionSummaryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionSummaryService.class);
+
+    private static final String SUMMARY_METRIC = "chat.summary.refresh";
+
+    /**
+     * 参与摘要的单条消息的最大token数，过长的回答只取开头
+     */
+    private static final int MAX_MESSAGE_TOKENS = 400;
+
+    private static final String SYSTEM_PROMPT = "你是对话摘要助手。只输出摘要内容，不要有任何其他内容。";
+
+    @Autowired
+    private AIApiService aiApiService;
+
+    @Autowired
+    private ChatSessionMapper chatSessionMapper;
+
+    @Autowired
+    private ChatMessageMapper chatMessageMapper;
+
+    @Autowired
+    private SessionWindowCache sessionWindowCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.summary.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.summary.refresh-every-turns:4}")
+    private int refreshEveryTurns;
+
+    @Value("${chat.summary.keep-recent-messages:6}")
+    private int keepRecentMessages;
+
+    @Value("${chat.summary.max-tokens:300}")
+    private int maxTokens;
+
+    @Value("${chat.summary.timeout-seconds:120}")
+    private long timeoutSeconds;
+
+    /**
+     * 正在生成摘要的会话，同一会话同时只有一个任务
+     */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 会话摘要
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Summary {
+        private final String text;
+
+        /**
+         * 摘要覆盖的最后一条消息的创建时间，不早于该时间的消息仍按原文发送
+         */
+        private final Date until;
+    }
+
+    /**
+     * 一次摘要任务的输入
+     */
+    @AllArgsConstructor
+    private static class RefreshTask {
+        private final String sessionId;
+        private final int coveredCount;
+        private final List<ChatMessage> messages;
+        private final Map<String, Object> request;
+    }
+
+    /**
+     * 读取会话摘要
+     *
+     * <p>会话的最近消息窗口已缓存时直接读取窗口中的摘要，否则查询会话记录。</p>
+     *
+     * @param sessionId 会话ID
+     * @param userId 当前用户，与会话所属用户不一致时不返回
+     * @return 摘要，未生成或无权访问时返回null
+     */
+    public Summary getSummary(String sessionId, Long userId) {
+        if (!enabled || sessionId == null) {
+            return null;
+        }
+        SessionWindowCache.Window window = sessionWindowCache.getIfPresent(sessionId);
+        if (window != null) {
+            return window.isAccessibleBy(userId) ? window.getSummary() : null;
+        }
+        ChatSession session = chatSessionMapper.selectById(sessionId);
+        if (session == null || session.getSummary() == null || session.getSummary().isBlank()
+                || (session.getUserId() != null && userId != null && !session.getUserId().equals(userId))) {
+            return null;
+        }
+        return new Summary(session.getSummary(), session.getSummaryUntil());
+    }
+
+    /**
+     * 新的一轮对话保存后调用，需要时在后台刷新摘要，立即返回
+     */
+    public void requestRefresh(String sessionId) {
+        if (!enabled || sessionId == null || !refreshing.add(sessionId)) {
+            return;
+        }
+        Mono.fromCallable(() -> prepare(sessionId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(task -> aiApiService.generateText(task.request)
+                        .timeout(Duration.ofSeconds(timeoutSeconds))
+                        .publishOn(Schedulers.boundedElastic())
+                        .doOnNext(text -> save(task, text)))
+                .doFinally(signal -> refreshing.remove(sessionId))
+                .subscribe(null, error -> {
+                    logger.warn("会话 {} 摘要生成失败，保留旧摘要: {}", sessionId, error.getMessage());
+                    meterRegistry.counter(SUMMARY_METRIC, "result", "failure").increment();
+                });
+    }
+
+    /**
+     * 检查是否需要刷新，需要时读取待摘要的消息并构造请求
+     *
+     * @return 摘要任务，不需要刷新时返回null
+     */
+    private RefreshTask prepare(String sessionId) {
+        ChatSession session = chatSessionMapper.selectById(sessionId);
+        if (session == null) {
+            return null;
+        }
+        int covered = session.getSummaryMessageCount() != null ? session.getSummaryMessageCount() : 0;
+        int pending = chatMessageMapper.countBySessionId(sessionId) - covered - keepRecentMessages;
+        if (pending < refreshEveryTurns * 2) {
+            return null;
+        }
+        List<ChatMessage> messages = chatMessageMapper.selectRangeBySessionId(sessionId, covered, pending);
+        if (messages.isEmpty()) {
+            return null;
+        }
+        logger.info("会话 {} 开始刷新摘要，已覆盖{}条消息，新增{}条", sessionId, covered, messages.size());
+        return new RefreshTask(sessionId, covered, messages, buildRequest(session.getSummary(), messages));
+    }
+
+    private Map<String, Object> buildRequest(String previousSummary, List<ChatMessage> messages) {
+        StringBuilder text = new StringBuilder();
+        text.append("请把下面的图书馆助手对话整理成一段简洁的摘要，保留用户的身份、需求、提到的书名、")
+                .append("已经给出的结论和尚未解决的问题，不超过").append(maxTokens).append("字。\n\n");
+        if (previousSummary != null && !previousSummary.isBlank()) {
+            text.append("此前的摘要：\n").append(previousSummary).append("\n\n");
+        }
+        text.append("新的对话：\n");
+        for (ChatMessage message : messages) {
+            String content = message.getContent() == null ? "" : message.getContent()
+                    .replaceAll("(?s)<think>.*?</think>", "")
+                    .replace("<br>", "\n")
+                    .trim();
+            text.append("user".equals(message.getRole()) ? "用户：" : "助手：")
+                    .append(TokenEstimator.truncate(content, MAX_MESSAGE_TOKENS))
+                    .append('\n');
+        }
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("text", text.toString());
+        request.put("system_prompt", SYSTEM_PROMPT);
+        request.put("max_length", maxTokens * 4);
+        return request;
+    }
+
+    private void save(RefreshTask task, String text) {
+        String summary = TokenEstimator.truncate(text.replaceAll("(?s)<think>.*?</think>", "").trim(), maxTokens);
+        ChatMessage last = task.messages.get(task.messages.size() - 1);
+        int updated = chatSessionMapper.updateSummary(task.sessionId, summary,
+                task.coveredCount + task.messages.size(), last.getCreateTime(), task.coveredCount);
+        if (updated > 0) {
+            sessionWindowCache.updateSummary(task.sessionId, new Summary(summary, last.getCreateTime()));
+            logger.info("会话 {} 摘要已更新，覆盖{}条消息，摘要长度{}",
+                    task.sessionId, task.coveredCount + task.messages.size(), summary.length());
+            meterRegistry.counter(SUMMARY_METRIC, "result", "success").increment();
+        } else {
+            logger.info("会话 {} 摘要已被更新或会话已删除，丢弃本次结果", task.sessionId);
+            meterRegistry.counter(SUMMARY_METRIC, "result", "stale").increment();
+        }
+    }
+}
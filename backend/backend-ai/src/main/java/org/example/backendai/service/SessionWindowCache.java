@@ -0,0 +1,193 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.example.backendai.DTO.ChatMessageDTO;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 活跃会话的最近消息缓存
+ *
+ * <p>每个会话保存最近 capacity 条消息的环形缓冲区，读取时未命中才查询数据库，
+ * 写入消息时追加到已缓存的窗口，会话空闲超过 idle-minutes 后淘汰。
+ * 命中率见 cache.gets{cache=session_window}。</p>
+ *
+ * <p>窗口同时保存加载时从会话记录读到的摘要，摘要刷新后同步更新，每轮对话读取摘要时不再查询会话记录。</p>
+ *
+ * <p>加载窗口和追加消息对同一会话互斥：追加时如果窗口正在加载，会等加载完成后再追加，
+ * 并按消息ID去重，加载查询已读到的消息不会重复，同一ID再次追加时更新为新的内容。</p>
+ */
+@Service
+public class SessionWindowCache {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.history.window.capacity:20}")
+    private int capacity;
+
+    @Value("${chat.history.window.max-sessions:10000}")
+    private long maxSessions;
+
+    @Value("${chat.history.window.idle-minutes:30}")
+    private long idleMinutes;
+
+    private Cache<String, Window> windows;
+
+    /**
+     * 一个会话的最近消息
+     */
+    public static class Window {
+
+        /**
+         * 会话所属用户，为null表示会话未关联用户
+         */
+        private final Long ownerId;
+        private final int capacity;
+        private final Deque<ChatMessageDTO> messages;
+
+        /**
+         * 会话摘要，没有时为null
+         */
+        private volatile SessionSummaryService.Summary summary;
+
+        /**
+         * @param ownerId 会话所属用户
+         * @param capacity 最多保存的消息数
+         * @param messages 最近的消息，按时间升序
+         */
+        public Window(Long ownerId, int capacity, Collection<ChatMessageDTO> messages) {
+            this.ownerId = ownerId;
+            this.capacity = capacity;
+            this.messages = new ArrayDeque<>(capacity);
+            messages.forEach(this::append);
+        }
+
+        /**
+         * 用户是否可以访问该会话，规则与数据库查询时的校验一致
+         */
+        public boolean isAccessibleBy(Long userId) {
+            return ownerId == null || userId == null || ownerId.equals(userId);
+        }
+
+        public SessionSummaryService.Summary getSummary() {
+            return summary;
+        }
+
+        public void setSummary(SessionSummaryService.Summary summary) {
+            this.summary = summary;
+        }
+
+        /**
+         * 最近的若干条消息，按时间升序，返回副本
+         */
+        public synchronized List<ChatMessageDTO> recent(int limit) {
+            List<ChatMessageDTO> recent = new ArrayList<>(Math.min(limit, messages.size()));
+            int skip = Math.max(0, messages.size() - limit);
+            for (ChatMessageDTO message : messages) {
+                if (skip-- > 0) {
+                    continue;
+                }
+                recent.add(copy(message));
+            }
+            return recent;
+        }
+
+        /**
+         * 追加消息，ID已存在时用新内容替换（分段写入的消息完成时）
+         */
+        private synchronized void append(ChatMessageDTO message) {
+            if (message.getId() != null) {
+                for (ChatMessageDTO existing : messages) {
+                    if (message.getId().equals(existing.getId())) {
+                        BeanUtils.copyProperties(message, existing);
+                        return;
+                    }
+                }
+            }
+            if (messages.size() >= capacity) {
+                messages.pollFirst();
+            }
+            messages.addLast(copy(message));
+        }
+
+        private static ChatMessageDTO copy(ChatMessageDTO message) {
+            ChatMessageDTO copy = new ChatMessageDTO();
+            BeanUtils.copyProperties(message, copy);
+            return copy;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        windows = Caffeine.newBuilder()
+                .maximumSize(maxSessions)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, windows, "session_window");
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 获取会话窗口，未缓存时用loader加载
+     *
+     * @param sessionId 会话ID
+     * @param loader 加载窗口，会话不存在或无权访问时返回null，此时不缓存
+     * @return 会话窗口，不存在时返回null
+     */
+    public Window get(String sessionId, Function<String, Window> loader) {
+        return windows.get(sessionId, loader);
+    }
+
+    /**
+     * 已缓存的会话窗口，不加载
+     */
+    public Window getIfPresent(String sessionId) {
+        return windows.getIfPresent(sessionId);
+    }
+
+    /**
+     * 新消息写入后追加到已缓存的窗口，会话未缓存时忽略
+     */
+    public void append(String sessionId, ChatMessageDTO message) {
+        windows.asMap().computeIfPresent(sessionId, (id, window) -> {
+            window.append(message);
+            return window;
+        });
+    }
+
+    /**
+     * 摘要刷新后更新已缓存的窗口，会话未缓存时忽略
+     */
+    public void updateSummary(String sessionId, SessionSummaryService.Summary summary) {
+        Window window = windows.getIfPresent(sessionId);
+        if (window != null) {
+            window.setSummary(summary);
+        }
+    }
+
+    /**
+     * 会话被删除时移除缓存
+     */
+    public void invalidate(String sessionId) {
+        windows.invalidate(sessionId);
+    }
+}
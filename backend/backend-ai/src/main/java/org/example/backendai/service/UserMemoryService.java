@@ -0,0 +1,180 @@
+package org.example.backendai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.example.backendai.DTO.ChatMessageDTO;
+import org.example.backendai.entity.ChatMessage;
+import org.example.backendai.mapper.ChatMessageMapper;
+import org.example.backendai.util.MessageIndex;
+import org.example.backendai.util.TokenEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 用户跨会话的历史消息检索
+ *
+ * <p>为每个活跃用户在内存中维护最近 max-messages 条消息的检索索引（见 {@link MessageIndex}），
+ * 首次检索时从数据库加载，之后新消息入库时追加，用户空闲超过 idle-minutes 后淘汰。
+ * 对话时检索其他会话中与问题相关的消息，在 token-budget 内附加到系统提示词。</p>
+ *
+ * <p>模型服务的 /embeddings 接口会把向量写入图书向量库且不返回向量，不适合用户消息，
+ * 这里使用词项检索。</p>
+ */
+@Service
+public class UserMemoryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserMemoryService.class);
+
+    private static final String RECALL_METRIC = "chat.memory.recall";
+
+    @Autowired
+    private ChatMessageMapper chatMessageMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.memory.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.memory.max-messages:500}")
+    private int maxMessages;
+
+    @Value("${chat.memory.max-users:2000}")
+    private long maxUsers;
+
+    @Value("${chat.memory.idle-minutes:30}")
+    private long idleMinutes;
+
+    @Value("${chat.memory.snippet-tokens:150}")
+    private int snippetTokens;
+
+    @Value("${chat.memory.top-k:3}")
+    private int topK;
+
+    @Value("${chat.memory.token-budget:300}")
+    private int tokenBudget;
+
+    @Value("${chat.memory.min-score:2.0}")
+    private double minScore;
+
+    private Cache<Long, MessageIndex> indexes;
+
+    @PostConstruct
+    public void init() {
+        indexes = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, indexes, "user_memory");
+    }
+
+    /**
+     * 检索用户在其他会话中与问题相关的消息
+     *
+     * @param userId 用户ID
+     * @param sessionId 当前会话，不参与检索
+     * @param question 用户问题
+     * @return 拼好的提示词段落，没有相关消息时返回null
+     */
+    public String recall(Long userId, String sessionId, String question) {
+        if (!enabled || userId == null) {
+            return null;
+        }
+        MessageIndex index = indexes.get(userId, this::load);
+        List<MessageIndex.Match> matches = index.search(question, sessionId, minScore, topK);
+
+        List<MessageIndex.Snippet> selected = new ArrayList<>(matches.size());
+        int tokens = 0;
+        for (MessageIndex.Match match : matches) {
+            MessageIndex.Snippet snippet = match.getSnippet();
+            if (tokens + snippet.getTokenCount() > tokenBudget) {
+                continue;
+            }
+            selected.add(snippet);
+            tokens += snippet.getTokenCount();
+        }
+        if (selected.isEmpty()) {
+            meterRegistry.counter(RECALL_METRIC, "result", "miss").increment();
+            return null;
+        }
+        meterRegistry.counter(RECALL_METRIC, "result", "hit").increment();
+        logger.info("用户 {} 检索到{}条相关历史消息，约{}个token", userId, selected.size(), tokens);
+
+        // 按时间顺序列出
+        selected.sort(Comparator.comparing(MessageIndex.Snippet::getCreateTime,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        StringBuilder prompt = new StringBuilder("以下是该用户在其他会话中的相关历史消息，仅供参考：");
+        for (MessageIndex.Snippet snippet : selected) {
+            prompt.append("\n- ");
+            if (snippet.getCreateTime() != null) {
+                prompt.append(dateFormat.format(snippet.getCreateTime())).append(' ');
+            }
+            prompt.append("user".equals(snippet.getRole()) ? "用户：" : "助手：").append(snippet.getContent());
+        }
+        return prompt.toString();
+    }
+
+    /**
+     * 新消息入库后追加到已加载的索引，用户索引未加载时忽略
+     */
+    public void append(Long userId, ChatMessageDTO message) {
+        if (!enabled || userId == null) {
+            return;
+        }
+        MessageIndex index = indexes.getIfPresent(userId);
+        if (index != null) {
+            index.add(snippetOf(message.getId(), message.getSessionId(), message.getRole(),
+                    message.getContent(), message.getCreateTime()));
+        }
+    }
+
+    /**
+     * 用户删除会话后移除索引，下次检索时重新加载
+     */
+    public void invalidate(Long userId) {
+        if (userId != null) {
+            indexes.invalidate(userId);
+        }
+    }
+
+    private MessageIndex load(Long userId) {
+        List<ChatMessage> messages = chatMessageMapper.selectRecentByUserId(userId, maxMessages);
+        MessageIndex index = new MessageIndex(maxMessages);
+        // 查询结果按时间降序，倒序追加使最早的消息先被淘汰
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            ChatMessage message = messages.get(i);
+            index.add(snippetOf(message.getId(), message.getSessionId(), message.getRole(),
+                    message.getContent(), message.getCreateTime()));
+        }
+        logger.info("已加载用户 {} 的历史消息索引，共{}条", userId, index.size());
+        return index;
+    }
+
+    /**
+     * 去掉思考过程和换行标记，截取开头部分
+     */
+    private MessageIndex.Snippet snippetOf(String id, String sessionId, String role, String content, Date createTime) {
+        String text = content == null ? "" : content
+                .replaceAll("(?s)<think>.*?</think>", "")
+                .replace("<br>", " ")
+                .replaceAll("\\s+", " ")
+                .trim();
+        text = TokenEstimator.truncate(text, snippetTokens);
+        return new MessageIndex.Snippet(id, sessionId, role, text, createTime, TokenEstimator.estimate(text));
+    }
+}
@@ -6,7 +6,11 @@ import org.example.backendai.entity.ChatSession;
 import org.example.backendai.mapper.ChatMessageMapper;
 import org.example.backendai.mapper.ChatSessionMapper;
 import org.example.backendai.service.ChatMessageService;
-import org.example.backendai.service.ChatSessionService;
+import org.example.backendai.service.ChatMessageWriter;
+import org.example.backendai.service.SessionSummaryService;
+import org.example.backendai.service.SessionWindowCache;
+import org.example.backendai.service.UserMemoryService;
+import org.example.backendai.util.TokenEstimator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanUtils;
@@ -14,10 +18,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -35,18 +42,31 @@ public class ChatMessageServiceImpl implements ChatMessageService {
     @Autowired
     private ChatSessionMapper chatSessionMapper;
     
-    @Autowired
-    private ChatSessionService chatSessionService;
-    
     @Autowired
     private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SessionWindowCache sessionWindowCache;
+
+    @Autowired
+    private UserMemoryService userMemoryService;
+
+    @Autowired
+    private ChatMessageWriter chatMessageWriter;
     
     @Override
     public ChatMessageDTO addMessage(String sessionId, Long userId, String role, String content) {
-        // 检查会话是否存在并验证用户权限
-        ChatSession session = chatSessionMapper.selectById(sessionId);
-        if (session == null || !validateUserAccess(session, userId)) {
-            return null;
+        // 检查会话是否存在并验证用户权限，会话窗口已缓存时使用其中的会话所属用户
+        SessionWindowCache.Window window = sessionWindowCache.getIfPresent(sessionId);
+        if (window != null) {
+            if (!window.isAccessibleBy(userId)) {
+                return null;
+            }
+        } else {
+            ChatSession session = chatSessionMapper.selectById(sessionId);
+            if (session == null || !validateUserAccess(session, userId)) {
+                return null;
+            }
         }
         
         // 创建消息，生成UUID作为ID
@@ -58,28 +78,55 @@ public class ChatMessageServiceImpl implements ChatMessageService {
                 .role(role)
                 .content(content)
                 .createTime(new Date())
+                .tokenCount(TokenEstimator.estimate(content))
                 .build();
         
         try {
-            int result = chatMessageMapper.insert(chatMessage);
-            if (result <= 0) {
-                return null;
-            }
-            
-            // 更新会话的最后一条消息预览
-            String preview = content;
-            if (preview.length() > 50) {
-                preview = preview.substring(0, 47) + "...";
-            }
-            chatSessionService.updateLastMessage(sessionId, preview);
-            
-            return convertToDTO(chatMessage);
+            // 写入消息并更新会话的最后一条消息预览，后台批量写入时立即返回
+            chatMessageWriter.write(chatMessage);
+
+            ChatMessageDTO dto = convertToDTO(chatMessage);
+            sessionWindowCache.append(sessionId, dto);
+            userMemoryService.append(userId, dto);
+            return dto;
         } catch (Exception e) {
             logger.error("添加消息失败: {}", e.getMessage());
             return null;
         }
     }
     
+    @Override
+    public ChatMessageDTO startMessage(String sessionId, Long userId, String role) {
+        ChatMessage chatMessage = ChatMessage.builder()
+                .id(UUID.randomUUID().toString())
+                .sessionId(sessionId)
+                .userId(userId)
+                .role(role)
+                .content("")
+                .createTime(new Date())
+                .tokenCount(0)
+                .build();
+        chatMessageWriter.write(chatMessage);
+        return convertToDTO(chatMessage);
+    }
+
+    @Override
+    public void appendContent(ChatMessageDTO message, String segment) {
+        if (segment == null || segment.isEmpty()) {
+            return;
+        }
+        chatMessageWriter.append(message.getSessionId(), message.getId(), segment);
+        message.setTokenCount(message.getTokenCount() + TokenEstimator.estimate(segment));
+    }
+
+    @Override
+    public void finishMessage(ChatMessageDTO message, Long userId, String content) {
+        chatMessageWriter.finish(message.getSessionId(), message.getId(), message.getTokenCount(), content);
+        message.setContent(content);
+        sessionWindowCache.append(message.getSessionId(), message);
+        userMemoryService.append(userId, message);
+    }
+
     @Override
     public List<ChatMessageDTO> getSessionMessages(String sessionId, Long userId) {
         // 检查会话是否存在并验证用户权限
@@ -88,13 +135,74 @@ public class ChatMessageServiceImpl implements ChatMessageService {
             return null;
         }
         
-        List<ChatMessage> messages = chatMessageMapper.selectBySessionId(sessionId);
-        
+        List<ChatMessage> pending = chatMessageWriter.pending(sessionId);
+        List<ChatMessage> messages = withPending(chatMessageMapper.selectBySessionId(sessionId), pending);
+
         return messages.stream()
                 .map(this::convertToDTO)
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public List<ChatMessageDTO> getRecentMessages(String sessionId, Long userId, int limit) {
+        if (limit > sessionWindowCache.getCapacity()) {
+            SessionWindowCache.Window window = loadWindow(sessionId, userId, limit);
+            return window != null ? window.recent(limit) : null;
+        }
+        SessionWindowCache.Window window = sessionWindowCache.get(sessionId,
+                id -> loadWindow(id, userId, sessionWindowCache.getCapacity()));
+        if (window == null || !window.isAccessibleBy(userId)) {
+            return null;
+        }
+        return window.recent(limit);
+    }
+
+    /**
+     * 校验访问权限并读取会话最近的消息
+     *
+     * @return 会话窗口，会话不存在或无权访问时返回null
+     */
+    private SessionWindowCache.Window loadWindow(String sessionId, Long userId, int capacity) {
+        ChatSession session = chatSessionMapper.selectById(sessionId);
+        if (session == null || !validateUserAccess(session, userId)) {
+            return null;
+        }
+        List<ChatMessage> pending = chatMessageWriter.pending(sessionId);
+        List<ChatMessage> messages = chatMessageMapper.selectRecentBySessionId(sessionId, capacity);
+        Collections.reverse(messages);
+        messages = withPending(messages, pending);
+        if (messages.size() > capacity) {
+            messages = messages.subList(messages.size() - capacity, messages.size());
+        }
+        SessionWindowCache.Window window = new SessionWindowCache.Window(session.getUserId(), capacity,
+                messages.stream().map(this::convertToDTO).collect(Collectors.toList()));
+        if (session.getSummary() != null && !session.getSummary().isBlank()) {
+            window.setSummary(new SessionSummaryService.Summary(session.getSummary(), session.getSummaryUntil()));
+        }
+        return window;
+    }
+
+    /**
+     * 把尚未写入数据库的消息合并到查询结果末尾，按ID去重
+     *
+     * @param messages 数据库中的消息，按时间升序
+     * @param pending 在查询数据库之前读取的未写入消息
+     */
+    private List<ChatMessage> withPending(List<ChatMessage> messages, List<ChatMessage> pending) {
+        if (pending.isEmpty()) {
+            return messages;
+        }
+        Set<String> ids = new HashSet<>();
+        messages.forEach(message -> ids.add(message.getId()));
+        List<ChatMessage> merged = new ArrayList<>(messages);
+        for (ChatMessage message : pending) {
+            if (ids.add(message.getId())) {
+                merged.add(message);
+            }
+        }
+        return merged;
+    }
+
     /**
      * 验证用户对会话的访问权限，必要时更新会话用户ID
      *
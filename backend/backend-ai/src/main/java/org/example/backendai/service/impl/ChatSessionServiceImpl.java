@@ -5,6 +5,8 @@ import org.example.backendai.entity.ChatSession;
 import org.example.backendai.mapper.ChatMessageMapper;
 import org.example.backendai.mapper.ChatSessionMapper;
 import org.example.backendai.service.ChatSessionService;
+import org.example.backendai.service.SessionWindowCache;
+import org.example.backendai.service.UserMemoryService;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -30,6 +32,12 @@ public class ChatSessionServiceImpl implements ChatSessionService {
     
     @Autowired
     private ChatMessageMapper chatMessageMapper;
+
+    @Autowired
+    private SessionWindowCache sessionWindowCache;
+
+    @Autowired
+    private UserMemoryService userMemoryService;
     
     @Override
     public ChatSessionDTO createSession(Long userId, String title) {
@@ -126,6 +134,8 @@ public class ChatSessionServiceImpl implements ChatSessionService {
         if (result > 0) {
             // 删除会话下的所有消息
             int messagesDeleted = chatMessageMapper.deleteBySessionId(id);
+            sessionWindowCache.invalidate(id);
+            userMemoryService.invalidate(userId);
             logger.info("会话删除成功: id={}, 同时删除相关消息数量: {}", id, messagesDeleted);
             return true;
         } else {
@@ -150,8 +160,10 @@ public class ChatSessionServiceImpl implements ChatSessionService {
             int totalMessagesDeleted = 0;
             for (ChatSession session : sessions) {
                 int messagesDeleted = chatMessageMapper.deleteBySessionId(session.getId());
+                sessionWindowCache.invalidate(session.getId());
                 totalMessagesDeleted += messagesDeleted;
             }
+            userMemoryService.invalidate(userId);
             logger.info("清空用户所有会话成功: userId={}, 删除会话数量: {}, 删除消息数量: {}", 
                       userId, result, totalMessagesDeleted);
             return true;
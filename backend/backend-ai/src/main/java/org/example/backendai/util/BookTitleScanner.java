@@ -0,0 +1,111 @@
+package org.example.backendai.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 流式书名识别状态机
+ *
+ * <p>逐个消费正文增量，识别《书名》格式的书名。书名号的打开状态跨分块保持，
+ * 每个增量只扫描一次，总开销与回复长度成线性关系。</p>
+ *
+ * <p>同时跟踪 &lt;think&gt; / &lt;/think&gt; 标记：思考过程中的书名不计入，
+ * 遇到 &lt;/think&gt; 时丢弃此前识别到的书名，与只统计思考结束后内容的规则一致。</p>
+ *
+ * <p>每个流使用一个独立实例，非线程安全。</p>
+ */
+public class BookTitleScanner {
+
+    private static final char TITLE_OPEN = '《';
+    private static final char TITLE_CLOSE = '》';
+    private static final String THINK_OPEN = "<think>";
+    private static final String THINK_CLOSE = "</think>";
+
+    /**
+     * 书名最大长度，超过后视为未闭合的书名号，放弃当前书名
+     */
+    private static final int MAX_TITLE_LENGTH = 100;
+
+    private final StringBuilder currentTitle = new StringBuilder();
+
+    private final Set<String> titles = new LinkedHashSet<>();
+
+    private boolean inTitle;
+
+    private boolean inThink;
+
+    /**
+     * 两个思考标记已匹配的字符数
+     */
+    private int thinkOpenMatched;
+    private int thinkCloseMatched;
+
+    /**
+     * 消费一段正文增量
+     *
+     * @param text 正文增量
+     * @return 本次新完成的书名，每个书名只返回一次
+     */
+    public List<String> feed(CharSequence text) {
+        List<String> completed = Collections.emptyList();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            thinkOpenMatched = advance(THINK_OPEN, thinkOpenMatched, c);
+            if (thinkOpenMatched == THINK_OPEN.length()) {
+                thinkOpenMatched = 0;
+                inThink = true;
+                inTitle = false;
+                continue;
+            }
+            thinkCloseMatched = advance(THINK_CLOSE, thinkCloseMatched, c);
+            if (thinkCloseMatched == THINK_CLOSE.length()) {
+                thinkCloseMatched = 0;
+                inThink = false;
+                inTitle = false;
+                titles.clear();
+                continue;
+            }
+
+            if (c == TITLE_OPEN) {
+                inTitle = true;
+                currentTitle.setLength(0);
+            } else if (c == TITLE_CLOSE) {
+                if (inTitle && currentTitle.length() > 0 && !inThink) {
+                    String title = currentTitle.toString();
+                    if (titles.add(title)) {
+                        if (completed.isEmpty()) {
+                            completed = new ArrayList<>(2);
+                        }
+                        completed.add(title);
+                    }
+                }
+                inTitle = false;
+            } else if (inTitle) {
+                if (currentTitle.length() >= MAX_TITLE_LENGTH) {
+                    inTitle = false;
+                } else {
+                    currentTitle.append(c);
+                }
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 当前有效的全部书名（按出现顺序）
+     */
+    public Set<String> getTitles() {
+        return Collections.unmodifiableSet(titles);
+    }
+
+    private static int advance(String marker, int matched, char c) {
+        if (c == marker.charAt(matched)) {
+            return matched + 1;
+        }
+        return c == marker.charAt(0) ? 1 : 0;
+    }
+}
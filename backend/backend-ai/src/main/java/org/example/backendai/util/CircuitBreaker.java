@@ -0,0 +1,163 @@
+package org.example.backendai.util;
+
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 按最近调用失败率断开的熔断器
+ *
+ * <p>CLOSED 状态下记录最近 windowSize 次调用的结果，至少有 minCalls 次且失败率达到 failureRateThreshold 时转为 OPEN；
+ * OPEN 状态拒绝所有调用，openMillis 后转为 HALF_OPEN，放行 halfOpenCalls 次试探调用，
+ * 全部成功时恢复 CLOSED，任一失败时重新 OPEN。</p>
+ *
+ * <p>调用前 {@link #tryAcquire()}，之后以 {@link #onSuccess()}、{@link #onFailure()} 或
+ * {@link #release()}（没有结果，如调用被取消）之一结束。所有方法互斥，可以在多个线程中使用。</p>
+ */
+public class CircuitBreaker {
+
+    /**
+     * 熔断器状态
+     */
+    public enum State {
+        CLOSED,    // 正常放行
+        OPEN,      // 拒绝调用
+        HALF_OPEN  // 放行少量试探调用
+    }
+
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+    private final Consumer<State> stateListener;
+
+    /**
+     * 最近调用是否失败，环形缓冲区
+     */
+    private final boolean[] outcomes;
+    private int next;
+    private int recorded;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenInFlight;
+    private int halfOpenSucceeded;
+
+    /**
+     * @param windowSize 统计失败率的最近调用次数
+     * @param minCalls 至少有多少次调用才计算失败率
+     * @param failureRateThreshold 转为 OPEN 的失败率，0到1之间
+     * @param openMillis OPEN 状态持续的毫秒数
+     * @param halfOpenCalls HALF_OPEN 状态放行的试探调用次数
+     * @param clock 当前时间（毫秒）
+     * @param stateListener 状态变化时调用，参数为新状态
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRateThreshold, long openMillis,
+                          int halfOpenCalls, LongSupplier clock, Consumer<State> stateListener) {
+        this.outcomes = new boolean[Math.max(1, windowSize)];
+        this.minCalls = Math.max(1, Math.min(minCalls, outcomes.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.clock = clock;
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * 申请一次调用
+     *
+     * @return 允许调用时返回true
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (clock.getAsLong() - openedAt < openMillis) {
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenInFlight + halfOpenSucceeded >= halfOpenCalls) {
+                return false;
+            }
+            halfOpenInFlight++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (halfOpenInFlight > 0) {
+                halfOpenInFlight--;
+            }
+            if (++halfOpenSucceeded >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minCalls && (double) failures / recorded >= failureRateThreshold) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * 调用结束但没有结果，归还 HALF_OPEN 状态下的试探名额
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && halfOpenInFlight > 0) {
+            halfOpenInFlight--;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failed) {
+        if (recorded == outcomes.length) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void transition(State newState) {
+        state = newState;
+        switch (newState) {
+            case OPEN:
+                openedAt = clock.getAsLong();
+                break;
+            case HALF_OPEN:
+                halfOpenInFlight = 0;
+                halfOpenSucceeded = 0;
+                break;
+            case CLOSED:
+            default:
+                next = 0;
+                recorded = 0;
+                failures = 0;
+                break;
+        }
+        stateListener.accept(newState);
+    }
+}
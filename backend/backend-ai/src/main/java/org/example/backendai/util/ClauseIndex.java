@@ -0,0 +1,228 @@
+package org.example.backendai.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 规章文本的条款索引
+ *
+ * <p>按"第X条"把规章文本切分为条款，第一条之前的引言（角色说明、规章名称）单独保存，
+ * "第X章"等章标题从条款中去掉。检索时以归一化文本的单字和相邻两字为词项，按BM25给条款打分，
+ * 选出与问题最相关的条款拼成提示词。问题中的口语说法先按 {@link #SYNONYMS} 补上规章中的用词。</p>
+ *
+ * <p>构建后不可变，线程安全。</p>
+ */
+public class ClauseIndex {
+
+    private static final Pattern MARKER = Pattern.compile("第[零〇一二三四五六七八九十百]+([章条])");
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /**
+     * 得分低于最高分该比例的条款不选
+     */
+    private static final double MIN_RELATIVE_SCORE = 0.4;
+
+    /**
+     * 口语说法 -> 规章用词
+     */
+    private static final Map<String, String> SYNONYMS = Map.ofEntries(
+            Map.entry("吃", "进食外卖"),
+            Map.entry("喝", "饮料"),
+            Map.entry("抽烟", "吸烟"),
+            Map.entry("几本", "册"),
+            Map.entry("多少本", "册"),
+            Map.entry("多久", "期限天"),
+            Map.entry("多长时间", "期限天"),
+            Map.entry("超期", "逾期"),
+            Map.entry("过期", "逾期"),
+            Map.entry("延期", "续借"),
+            Map.entry("丢", "遗失"),
+            Map.entry("弄坏", "损坏污损"),
+            Map.entry("毕业", "离校"),
+            Map.entry("占座", "抢占座位"),
+            Map.entry("吵", "喧哗噪音"),
+            Map.entry("说话", "喧哗轻声"),
+            Map.entry("手机", "静音电话"),
+            Map.entry("穿", "衣着拖鞋背心"),
+            Map.entry("扣分", "减分"),
+            Map.entry("扣", "减分"),
+            Map.entry("加分", "加分项"),
+            Map.entry("获得", "加分"),
+            Map.entry("带走", "带出"));
+
+    private final String preamble;
+    private final List<String> clauses;
+    private final List<Map<String, Integer>> termFrequencies;
+    private final int[] lengths;
+    private final int[] tokenCounts;
+    private final Map<String, Double> idf;
+    private final double averageLength;
+
+    private ClauseIndex(String preamble, List<String> clauses) {
+        this.preamble = preamble;
+        this.clauses = clauses;
+        this.termFrequencies = new ArrayList<>(clauses.size());
+        this.lengths = new int[clauses.size()];
+        this.tokenCounts = new int[clauses.size()];
+
+        Map<String, Integer> documentFrequencies = new HashMap<>();
+        long totalLength = 0;
+        for (int i = 0; i < clauses.size(); i++) {
+            List<String> terms = terms(clauses.get(i));
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : terms) {
+                frequencies.merge(term, 1, Integer::sum);
+            }
+            frequencies.keySet().forEach(term -> documentFrequencies.merge(term, 1, Integer::sum));
+            termFrequencies.add(frequencies);
+            lengths[i] = terms.size();
+            tokenCounts[i] = TokenEstimator.estimate(clauses.get(i));
+            totalLength += terms.size();
+        }
+        this.averageLength = clauses.isEmpty() ? 0 : (double) totalLength / clauses.size();
+
+        this.idf = new HashMap<>(documentFrequencies.size() * 2);
+        int n = clauses.size();
+        documentFrequencies.forEach((term, df) -> idf.put(term, Math.log(1 + (n - df + 0.5) / (df + 0.5))));
+    }
+
+    /**
+     * 切分规章文本并建立索引
+     *
+     * @param text 规章文本
+     * @return 条款索引，文本中没有"第X条"时只有引言
+     */
+    public static ClauseIndex build(String text) {
+        Matcher matcher = MARKER.matcher(text);
+        String preamble = null;
+        List<String> clauses = new ArrayList<>();
+        int clauseStart = -1;
+        while (matcher.find()) {
+            if (preamble == null) {
+                preamble = text.substring(0, matcher.start());
+            }
+            if (clauseStart >= 0) {
+                addClause(clauses, text.substring(clauseStart, matcher.start()));
+            }
+            // 章标题不单独成条，下一条之前的章名一并丢弃
+            clauseStart = "条".equals(matcher.group(1)) ? matcher.start() : -1;
+        }
+        if (preamble == null) {
+            return new ClauseIndex(text, List.of());
+        }
+        if (clauseStart >= 0) {
+            addClause(clauses, text.substring(clauseStart));
+        }
+        return new ClauseIndex(preamble, clauses);
+    }
+
+    private static void addClause(List<String> clauses, String clause) {
+        if (!clause.isBlank()) {
+            clauses.add(clause.trim());
+        }
+    }
+
+    public int size() {
+        return clauses.size();
+    }
+
+    /**
+     * 选出与问题最相关的条款，与引言一起按原文顺序拼接
+     *
+     * <p>最多选 topK 条得分不低于最高分40%的条款，放不进预算的条款跳过，得分最高的一条总会保留。
+     * 问题与所有条款都不相关时（如问候语），按原文顺序取前 topK 条。</p>
+     *
+     * @param question 用户问题
+     * @param topK 最多选择的条款数
+     * @param tokenBudget 引言和条款的token预算
+     * @return 精简后的规章文本
+     */
+    public String select(String question, int topK, int tokenBudget) {
+        if (clauses.isEmpty()) {
+            return preamble;
+        }
+
+        double[] scores = score(question);
+        List<Integer> ranked = new ArrayList<>();
+        for (int i = 0; i < clauses.size(); i++) {
+            if (scores[i] > 0) {
+                ranked.add(i);
+            }
+        }
+        ranked.sort(Comparator.comparingDouble((Integer i) -> -scores[i]).thenComparing(i -> i));
+        if (!ranked.isEmpty()) {
+            double cutoff = scores[ranked.get(0)] * MIN_RELATIVE_SCORE;
+            ranked.removeIf(i -> scores[i] < cutoff);
+        } else {
+            for (int i = 0; i < clauses.size(); i++) {
+                ranked.add(i);
+            }
+        }
+
+        TreeSet<Integer> selected = new TreeSet<>();
+        int tokens = TokenEstimator.estimate(preamble);
+        for (int i : ranked) {
+            if (selected.size() >= topK) {
+                break;
+            }
+            if (selected.isEmpty() || tokens + tokenCounts[i] <= tokenBudget) {
+                selected.add(i);
+                tokens += tokenCounts[i];
+            }
+        }
+
+        StringBuilder prompt = new StringBuilder(preamble);
+        selected.forEach(i -> prompt.append(clauses.get(i)));
+        return prompt.toString();
+    }
+
+    /**
+     * 各条款对问题的BM25得分
+     */
+    double[] score(String question) {
+        StringBuilder expanded = new StringBuilder(question);
+        SYNONYMS.forEach((colloquial, formal) -> {
+            if (question.contains(colloquial)) {
+                expanded.append(' ').append(formal);
+            }
+        });
+        double[] scores = new double[clauses.size()];
+        for (String term : new TreeSet<>(terms(expanded.toString()))) {
+            Double termIdf = idf.get(term);
+            if (termIdf == null) {
+                continue;
+            }
+            for (int i = 0; i < clauses.size(); i++) {
+                Integer tf = termFrequencies.get(i).get(term);
+                if (tf != null) {
+                    double norm = K1 * (1 - B + B * lengths[i] / averageLength);
+                    scores[i] += termIdf * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * 归一化文本的单字和相邻两字
+     */
+    private static List<String> terms(String text) {
+        String normalized = TextNormalizer.normalize(text);
+        List<String> terms = new ArrayList<>(normalized.length() * 2);
+        for (int i = 0; i < normalized.length(); i++) {
+            terms.add(normalized.substring(i, i + 1));
+            if (i + 2 <= normalized.length()) {
+                terms.add(normalized.substring(i, i + 2));
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.backendai.util;
+
+import org.example.backendai.DTO.ChatMessageDTO;
+import org.springframework.beans.BeanUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按token预算组装对话上下文
+ *
+ * <p>从最新的消息开始往前放，直到预算用完：</p>
+ * <ul>
+ *   <li>最新一条（本次问题）总会保留，超出预算时截断</li>
+ *   <li>放不下的第一条旧消息，剩余预算不少于 minPartialTokens 时截断后保留开头部分，否则丢弃</li>
+ *   <li>更早的消息全部丢弃，保证上下文是连续的最近对话</li>
+ * </ul>
+ *
+ * <p>消息的token数优先使用入库时保存的 tokenCount，旧数据才现场估算。</p>
+ */
+public final class ContextPacker {
+
+    /**
+     * 每条消息的角色标记等固定开销
+     */
+    static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private static final String TRUNCATED_MARK = "……";
+
+    private ContextPacker() {
+    }
+
+    /**
+     * @param messages 按时间升序的消息，不会被修改
+     * @param tokenBudget 消息的token预算
+     * @param minPartialTokens 截断旧消息时至少保留的token数
+     * @return 按时间升序的消息，截断的消息是副本
+     */
+    public static List<ChatMessageDTO> pack(List<ChatMessageDTO> messages, int tokenBudget, int minPartialTokens) {
+        if (messages.isEmpty()) {
+            return messages;
+        }
+        List<ChatMessageDTO> packed = new ArrayList<>(messages.size());
+        int remaining = tokenBudget;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            ChatMessageDTO message = messages.get(i);
+            int cost = tokensOf(message) + MESSAGE_OVERHEAD_TOKENS;
+            if (cost <= remaining) {
+                packed.add(message);
+                remaining -= cost;
+                continue;
+            }
+            boolean newest = packed.isEmpty();
+            int available = remaining - MESSAGE_OVERHEAD_TOKENS;
+            if (newest || available >= minPartialTokens) {
+                packed.add(truncated(message, Math.max(available, minPartialTokens)));
+            }
+            break;
+        }
+        Collections.reverse(packed);
+        return packed;
+    }
+
+    /**
+     * 消息内容的token数
+     */
+    public static int tokensOf(ChatMessageDTO message) {
+        if (message.getTokenCount() != null) {
+            return message.getTokenCount();
+        }
+        return TokenEstimator.estimate(message.getContent());
+    }
+
+    private static ChatMessageDTO truncated(ChatMessageDTO message, int maxTokens) {
+        ChatMessageDTO copy = new ChatMessageDTO();
+        BeanUtils.copyProperties(message, copy);
+        String content = TokenEstimator.truncate(message.getContent(), maxTokens - TokenEstimator.estimate(TRUNCATED_MARK)) + TRUNCATED_MARK;
+        copy.setContent(content);
+        copy.setTokenCount(TokenEstimator.estimate(content));
+        return copy;
+    }
+}
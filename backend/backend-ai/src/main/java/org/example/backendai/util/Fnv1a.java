@@ -0,0 +1,28 @@
+package org.example.backendai.util;
+
+/**
+ * 64位FNV-1a哈希
+ *
+ * <p>计算简单、分布均匀，用于提示词、用户身份信息等文本的指纹，不用于安全场景。</p>
+ */
+public final class Fnv1a {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fnv1a() {
+    }
+
+    /**
+     * @param text 文本，按UTF-16字符计算
+     * @return 64位哈希
+     */
+    public static long hash64(CharSequence text) {
+        long hash = OFFSET_BASIS;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
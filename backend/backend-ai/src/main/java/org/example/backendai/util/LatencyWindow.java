@@ -0,0 +1,59 @@
+package org.example.backendai.util;
+
+import java.util.Arrays;
+
+/**
+ * 最近若干次调用耗时的滑动窗口，用于估计耗时分位数
+ *
+ * <p>只保留最近 windowSize 次记录，旧记录依次被覆盖。所有方法互斥，可以在多个线程中使用。</p>
+ */
+public class LatencyWindow {
+
+    /**
+     * 最近调用耗时（毫秒），环形缓冲区
+     */
+    private final long[] samples;
+    private int next;
+    private int recorded;
+
+    /**
+     * @param windowSize 保留的最近调用次数
+     */
+    public LatencyWindow(int windowSize) {
+        this.samples = new long[Math.max(1, windowSize)];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (recorded < samples.length) {
+            recorded++;
+        }
+    }
+
+    /**
+     * @return 已记录的次数，最多为窗口大小
+     */
+    public synchronized int size() {
+        return recorded;
+    }
+
+    /**
+     * 最近调用耗时的分位数
+     *
+     * @param quantile 0到1之间，如0.95
+     * @return 分位数耗时（毫秒），没有记录时返回-1
+     */
+    public long percentile(double quantile) {
+        long[] sorted;
+        synchronized (this) {
+            if (recorded == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, recorded);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.min(1.0, Math.max(0.0, quantile)) * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,183 @@
+package org.example.backendai.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一个用户历史消息的检索索引
+ *
+ * <p>以归一化文本（见 {@link TextNormalizer}）的相邻两字为词项，按BM25打分，问题中的疑问词不计分。
+ * 最多保存 capacity 条消息，超出时淘汰最早的消息。支持追加，文档频率随追加和淘汰增量维护。</p>
+ *
+ * <p>所有方法互斥，可以在多个线程中使用。</p>
+ */
+public class MessageIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /**
+     * 疑问词、代词等在问题中普遍出现的词项，检索时不计分
+     */
+    private static final Set<String> STOP_TERMS = Set.of(
+            "怎么", "么样", "什么", "为什", "可以", "哪里", "哪些", "有没", "没有", "一下", "是不", "不是",
+            "多少", "请问", "我想", "你们", "我们", "这个", "那个", "之前", "一些", "有什", "的书", "是什");
+
+    /**
+     * 检索到的历史消息
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Snippet {
+        private final String messageId;
+        private final String sessionId;
+        private final String role;
+        private final String content;
+        private final Date createTime;
+        private final int tokenCount;
+    }
+
+    /**
+     * 检索结果
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Match {
+        private final Snippet snippet;
+        private final double score;
+    }
+
+    private static class Entry {
+        private final Snippet snippet;
+        private final Map<String, Integer> termFrequencies;
+        private final int length;
+
+        private Entry(Snippet snippet, Map<String, Integer> termFrequencies, int length) {
+            this.snippet = snippet;
+            this.termFrequencies = termFrequencies;
+            this.length = length;
+        }
+    }
+
+    private final int capacity;
+    private final Deque<Entry> entries;
+    private final Set<String> messageIds = new HashSet<>();
+    private final Map<String, Integer> documentFrequencies = new HashMap<>();
+    private long totalLength;
+
+    public MessageIndex(int capacity) {
+        this.capacity = capacity;
+        this.entries = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * 追加一条消息，ID已存在或没有可检索的内容时忽略
+     */
+    public synchronized void add(Snippet snippet) {
+        if (snippet.getMessageId() == null || messageIds.contains(snippet.getMessageId())) {
+            return;
+        }
+        List<String> terms = terms(snippet.getContent());
+        if (terms.isEmpty()) {
+            return;
+        }
+        if (entries.size() >= capacity) {
+            remove(entries.pollFirst());
+        }
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : terms) {
+            frequencies.merge(term, 1, Integer::sum);
+        }
+        frequencies.keySet().forEach(term -> documentFrequencies.merge(term, 1, Integer::sum));
+        entries.addLast(new Entry(snippet, frequencies, terms.size()));
+        messageIds.add(snippet.getMessageId());
+        totalLength += terms.size();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 检索与问题最相关的消息
+     *
+     * @param query 问题
+     * @param excludeSessionId 不参与检索的会话，通常是当前会话
+     * @param minScore 最低得分
+     * @param limit 最多返回的条数
+     * @return 按得分降序
+     */
+    public synchronized List<Match> search(String query, String excludeSessionId, double minScore, int limit) {
+        if (entries.isEmpty()) {
+            return List.of();
+        }
+        Map<String, Double> idf = new HashMap<>();
+        int n = entries.size();
+        for (String term : new HashSet<>(terms(query))) {
+            if (STOP_TERMS.contains(term)) {
+                continue;
+            }
+            Integer df = documentFrequencies.get(term);
+            if (df != null) {
+                idf.put(term, Math.log(1 + (n - df + 0.5) / (df + 0.5)));
+            }
+        }
+        if (idf.isEmpty()) {
+            return List.of();
+        }
+
+        double averageLength = (double) totalLength / n;
+        List<Match> matches = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (excludeSessionId != null && excludeSessionId.equals(entry.snippet.getSessionId())) {
+                continue;
+            }
+            double score = 0;
+            for (Map.Entry<String, Double> term : idf.entrySet()) {
+                Integer tf = entry.termFrequencies.get(term.getKey());
+                if (tf != null) {
+                    double norm = K1 * (1 - B + B * entry.length / averageLength);
+                    score += term.getValue() * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+            if (score > 0 && score >= minScore) {
+                matches.add(new Match(entry.snippet, score));
+            }
+        }
+        matches.sort(Comparator.comparingDouble(Match::getScore).reversed());
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    private void remove(Entry entry) {
+        entry.termFrequencies.keySet().forEach(term ->
+                documentFrequencies.computeIfPresent(term, (key, df) -> df > 1 ? df - 1 : null));
+        messageIds.remove(entry.snippet.getMessageId());
+        totalLength -= entry.length;
+    }
+
+    /**
+     * 归一化文本的相邻两字，只有一个字时为该字
+     */
+    private static List<String> terms(String text) {
+        String normalized = TextNormalizer.normalize(text);
+        if (normalized.length() <= 1) {
+            return normalized.isEmpty() ? List.of() : List.of(normalized);
+        }
+        List<String> terms = new ArrayList<>(normalized.length() - 1);
+        for (int i = 0; i + 2 <= normalized.length(); i++) {
+            terms.add(normalized.substring(i, i + 2));
+        }
+        return terms;
+    }
+}
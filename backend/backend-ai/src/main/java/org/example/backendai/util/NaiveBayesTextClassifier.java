@@ -0,0 +1,206 @@
+package org.example.backendai.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 字符n-gram多项式朴素贝叶斯文本分类器
+ *
+ * <p>文本经 {@link TextNormalizer} 归一化后切成1~3字的n-gram，
+ * 中英文混合的短问题不需要分词。类别先验取均匀分布，训练数据中各类数量不代表线上分布。</p>
+ *
+ * <p>置信度为后验概率，计算时把对数似然除以n-gram数量的平方根，
+ * 避免长问题的后验被n-gram数量放大到接近1，低置信度的问题交给上游模型判断。</p>
+ *
+ * <p>训练后不可变，线程安全。</p>
+ */
+public class NaiveBayesTextClassifier {
+
+    private static final int MIN_GRAM = 1;
+    private static final int MAX_GRAM = 3;
+
+    /**
+     * 加性平滑系数
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * 带标签的训练文本
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class LabeledText {
+        private final String label;
+        private final String text;
+    }
+
+    /**
+     * 分类结果
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Prediction {
+        private final String label;
+        private final double confidence;
+
+        @Override
+        public String toString() {
+            return label + String.format("(%.3f)", confidence);
+        }
+    }
+
+    private final String[] labels;
+
+    /**
+     * n-gram在各类别下的对数似然
+     */
+    private final Map<String, double[]> logLikelihoods;
+
+    /**
+     * 训练中没出现过的n-gram在各类别下的对数似然
+     */
+    private final double[] unseenLogLikelihoods;
+
+    private NaiveBayesTextClassifier(String[] labels, Map<String, double[]> logLikelihoods, double[] unseenLogLikelihoods) {
+        this.labels = labels;
+        this.logLikelihoods = logLikelihoods;
+        this.unseenLogLikelihoods = unseenLogLikelihoods;
+    }
+
+    /**
+     * 读取JSONL格式的训练数据，每行 {"label": "...", "text": "..."}，其他字段忽略
+     */
+    public static List<LabeledText> readExamples(InputStream input) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<LabeledText> examples = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode node = mapper.readTree(line);
+                examples.add(new LabeledText(node.path("label").asText(), node.path("text").asText()));
+            }
+        }
+        return examples;
+    }
+
+    /**
+     * 训练分类器
+     *
+     * @param examples 训练数据
+     * @return 训练好的分类器
+     */
+    public static NaiveBayesTextClassifier train(List<LabeledText> examples) {
+        Map<String, Integer> labelIndex = new LinkedHashMap<>();
+        for (LabeledText example : examples) {
+            labelIndex.putIfAbsent(example.getLabel(), labelIndex.size());
+        }
+        int classCount = labelIndex.size();
+        if (classCount == 0) {
+            throw new IllegalArgumentException("训练数据为空");
+        }
+
+        Map<String, int[]> counts = new HashMap<>();
+        long[] totals = new long[classCount];
+        for (LabeledText example : examples) {
+            int c = labelIndex.get(example.getLabel());
+            for (String gram : ngrams(TextNormalizer.normalize(example.getText()))) {
+                counts.computeIfAbsent(gram, k -> new int[classCount])[c]++;
+                totals[c]++;
+            }
+        }
+
+        int vocabulary = counts.size();
+        double[] denominators = new double[classCount];
+        double[] unseen = new double[classCount];
+        for (int c = 0; c < classCount; c++) {
+            denominators[c] = Math.log(totals[c] + ALPHA * vocabulary);
+            unseen[c] = Math.log(ALPHA) - denominators[c];
+        }
+
+        Map<String, double[]> logLikelihoods = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            double[] values = new double[classCount];
+            for (int c = 0; c < classCount; c++) {
+                values[c] = Math.log(entry.getValue()[c] + ALPHA) - denominators[c];
+            }
+            logLikelihoods.put(entry.getKey(), values);
+        }
+
+        return new NaiveBayesTextClassifier(labelIndex.keySet().toArray(new String[0]), logLikelihoods, unseen);
+    }
+
+    /**
+     * 对文本分类
+     *
+     * @param text 待分类文本
+     * @return 最可能的类别及其置信度，文本归一化后为空时置信度为0
+     */
+    public Prediction classify(String text) {
+        String normalized = TextNormalizer.normalize(text);
+        if (normalized.isEmpty()) {
+            return new Prediction(labels[0], 0.0);
+        }
+
+        double[] scores = new double[labels.length];
+        int gramCount = 0;
+        for (int n = MIN_GRAM; n <= MAX_GRAM; n++) {
+            for (int i = 0; i + n <= normalized.length(); i++) {
+                double[] values = logLikelihoods.get(normalized.substring(i, i + n));
+                if (values == null) {
+                    values = unseenLogLikelihoods;
+                }
+                for (int c = 0; c < scores.length; c++) {
+                    scores[c] += values[c];
+                }
+                gramCount++;
+            }
+        }
+
+        // 按n-gram数量缩放后做softmax
+        double scale = 1.0 / Math.sqrt(gramCount);
+        int best = 0;
+        for (int c = 1; c < scores.length; c++) {
+            if (scores[c] > scores[best]) {
+                best = c;
+            }
+        }
+        double sum = 0;
+        for (int c = 0; c < scores.length; c++) {
+            sum += Math.exp((scores[c] - scores[best]) * scale);
+        }
+        return new Prediction(labels[best], 1.0 / sum);
+    }
+
+    /**
+     * 全部类别，按训练数据中第一次出现的顺序
+     */
+    public List<String> getLabels() {
+        return List.of(labels);
+    }
+
+    private static List<String> ngrams(String normalized) {
+        List<String> grams = new ArrayList<>(normalized.length() * (MAX_GRAM - MIN_GRAM + 1));
+        for (int n = MIN_GRAM; n <= MAX_GRAM; n++) {
+            for (int i = 0; i + n <= normalized.length(); i++) {
+                grams.add(normalized.substring(i, i + n));
+            }
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,341 @@
+package org.example.backendai.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.reactivestreams.Subscription;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * SSE输出合并阶段
+ *
+ * <p>把连续的正文事件（{"type":"content","data":...}）合并后再写出，满足以下任一条件时发送：</p>
+ * <ul>
+ *   <li>第一段未发送的正文已等待 maxLatency</li>
+ *   <li>未发送的正文达到 maxBytes（UTF-8字节数）</li>
+ *   <li>遇到其他事件（书籍摘要、完成、错误等），先发送已合并的正文以保持顺序</li>
+ * </ul>
+ *
+ * <p>只在下游有需求时发送：客户端写得慢时正文继续在本阶段合并，而不是排成大量小事件。
+ * 积压超过 maxPendingBytes 时视为慢客户端，按 {@link SlowClientPolicy} 处理。</p>
+ *
+ * <p>实例本身无状态，每次订阅使用独立的合并状态，可作为 {@code Flux.transform} 的参数复用。</p>
+ */
+public class SseCoalescer implements Function<Flux<ServerSentEvent<Object>>, Flux<ServerSentEvent<Object>>> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseCoalescer.class);
+
+    /**
+     * 慢客户端处理策略
+     */
+    public enum SlowClientPolicy {
+        BACKPRESSURE, // 暂停读取上游，由TCP背压传回模型服务
+        DISCONNECT    // 取消上游并以错误结束流
+    }
+
+    private final Duration maxLatency;
+    private final int maxBytes;
+    private final int maxPendingBytes;
+    private final SlowClientPolicy slowClientPolicy;
+    private final Scheduler timer;
+    private final Runnable slowClientListener;
+
+    /**
+     * @param maxLatency 正文最长等待时间，为0时每次有需求立即发送
+     * @param maxBytes 达到该字节数立即发送
+     * @param maxPendingBytes 积压超过该字节数视为慢客户端
+     * @param slowClientPolicy 慢客户端处理策略
+     * @param timer 延迟发送使用的调度器
+     * @param slowClientListener 每个流第一次被判定为慢客户端时调用
+     */
+    public SseCoalescer(Duration maxLatency, int maxBytes, int maxPendingBytes,
+                        SlowClientPolicy slowClientPolicy, Scheduler timer, Runnable slowClientListener) {
+        this.maxLatency = maxLatency;
+        this.maxBytes = maxBytes;
+        this.maxPendingBytes = Math.max(maxPendingBytes, maxBytes);
+        this.slowClientPolicy = slowClientPolicy;
+        this.timer = timer;
+        this.slowClientListener = slowClientListener;
+    }
+
+    @Override
+    public Flux<ServerSentEvent<Object>> apply(Flux<ServerSentEvent<Object>> source) {
+        return Flux.create(sink -> {
+            Coalescing coalescing = new Coalescing(sink);
+            sink.onRequest(n -> coalescing.drain());
+            sink.onDispose(coalescing::release);
+            source.subscribe(coalescing);
+        });
+    }
+
+    /**
+     * 返回正文事件的文本，不是可合并的正文事件时返回null
+     */
+    private static String contentText(ServerSentEvent<Object> event) {
+        if (event.event() != null || event.id() != null || !(event.data() instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> data = (Map<?, ?>) event.data();
+        Object text = data.get("data");
+        if (data.size() != 2 || !"content".equals(data.get("type")) || !(text instanceof String)) {
+            return null;
+        }
+        return (String) text;
+    }
+
+    private static ServerSentEvent<Object> contentEvent(String text) {
+        Map<String, Object> contentEvent = new HashMap<>();
+        contentEvent.put("type", "content");
+        contentEvent.put("data", text);
+        return ServerSentEvent.<Object>builder(contentEvent).build();
+    }
+
+    /**
+     * 不分配内存地计算字符串的UTF-8字节数
+     */
+    static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 已排队等待发送的事件及其正文字节数
+     */
+    private static final class Queued {
+        private final ServerSentEvent<Object> event;
+        private final int bytes;
+
+        private Queued(ServerSentEvent<Object> event, int bytes) {
+            this.event = event;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 单个流的合并状态
+     *
+     * <p>上游回调、定时器和下游请求可能在不同线程上触发，状态修改在lock内完成，
+     * 向下游发送由wip计数保证同一时刻只有一个线程执行</p>
+     */
+    private final class Coalescing extends BaseSubscriber<ServerSentEvent<Object>> {
+
+        private final FluxSink<ServerSentEvent<Object>> sink;
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Object lock = new Object();
+
+        private final Deque<Queued> ready = new ArrayDeque<>();
+        private final StringBuilder pending = new StringBuilder();
+        private int pendingBytes;
+        private int bufferedBytes;
+        private boolean flushDue;
+        private Disposable flushTimer;
+
+        private boolean upstreamPaused;
+        private boolean slowClientReported;
+        private boolean done;
+        private boolean terminated;
+        private Throwable error;
+
+        private Coalescing(FluxSink<ServerSentEvent<Object>> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(1);
+        }
+
+        @Override
+        protected void hookOnNext(ServerSentEvent<Object> event) {
+            String text = contentText(event);
+            boolean slow;
+            boolean firstReport = false;
+            synchronized (lock) {
+                if (text == null) {
+                    movePendingToReady();
+                    ready.add(new Queued(event, 0));
+                } else if (!text.isEmpty()) {
+                    if (pending.length() == 0 && !maxLatency.isZero()) {
+                        flushTimer = timer.schedule(this::onFlushTimer, maxLatency.toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    int bytes = utf8Length(text);
+                    pending.append(text);
+                    pendingBytes += bytes;
+                    bufferedBytes += bytes;
+                    if (pendingBytes >= maxBytes || maxLatency.isZero()) {
+                        flushDue = true;
+                    }
+                }
+                slow = bufferedBytes > maxPendingBytes;
+                if (slow) {
+                    upstreamPaused = true;
+                    firstReport = !slowClientReported;
+                    slowClientReported = true;
+                }
+            }
+
+            if (firstReport) {
+                logger.warn("客户端接收过慢，积压{}字节，处理策略: {}", bufferedBytes, slowClientPolicy);
+                slowClientListener.run();
+            }
+            if (slow && slowClientPolicy == SlowClientPolicy.DISCONNECT) {
+                cancel();
+                synchronized (lock) {
+                    ready.clear();
+                    clearPending();
+                    bufferedBytes = 0;
+                    error = new IllegalStateException("客户端接收过慢，已断开");
+                    done = true;
+                }
+                drain();
+                return;
+            }
+
+            drain();
+            if (!slow) {
+                request(1);
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            finish(null);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            finish(throwable);
+        }
+
+        private void finish(Throwable throwable) {
+            synchronized (lock) {
+                flushDue = true;
+                done = true;
+                error = throwable;
+            }
+            drain();
+        }
+
+        private void onFlushTimer() {
+            synchronized (lock) {
+                flushTimer = null;
+                if (pending.length() > 0) {
+                    flushDue = true;
+                }
+            }
+            drain();
+        }
+
+        /**
+         * 在下游有需求时发送已就绪的事件，上游结束且缓冲清空后结束流
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (sink.requestedFromDownstream() > 0 && !sink.isCancelled()) {
+                    ServerSentEvent<Object> next = null;
+                    boolean resume = false;
+                    synchronized (lock) {
+                        Queued queued = ready.poll();
+                        if (queued != null) {
+                            next = queued.event;
+                            bufferedBytes -= queued.bytes;
+                        } else if (flushDue && pending.length() > 0) {
+                            next = contentEvent(pending.toString());
+                            bufferedBytes -= pendingBytes;
+                            clearPending();
+                        }
+                        if (next != null && upstreamPaused && !done && bufferedBytes <= maxPendingBytes) {
+                            upstreamPaused = false;
+                            resume = true;
+                        }
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    sink.next(next);
+                    if (resume) {
+                        request(1);
+                    }
+                }
+
+                Throwable failure = null;
+                boolean complete = false;
+                synchronized (lock) {
+                    if (done && !terminated && ready.isEmpty() && pending.length() == 0) {
+                        terminated = true;
+                        complete = true;
+                        failure = error;
+                    }
+                }
+                if (complete) {
+                    if (failure != null) {
+                        sink.error(failure);
+                    } else {
+                        sink.complete();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * 把已合并的正文放入发送队列，保证它在后续的非正文事件之前发送
+         */
+        private void movePendingToReady() {
+            if (pending.length() > 0) {
+                ready.add(new Queued(contentEvent(pending.toString()), pendingBytes));
+                clearPending();
+            }
+        }
+
+        private void clearPending() {
+            pending.setLength(0);
+            pendingBytes = 0;
+            flushDue = false;
+            if (flushTimer != null) {
+                flushTimer.dispose();
+                flushTimer = null;
+            }
+        }
+
+        private void release() {
+            cancel();
+            synchronized (lock) {
+                if (flushTimer != null) {
+                    flushTimer.dispose();
+                    flushTimer = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.example.backendai.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import org.example.backendai.DTO.StreamEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 上游模型流的增量解码器
+ *
+ * <p>直接在字节层面跨 DataBuffer 拼接数据，避免在缓冲区边界把多字节的中文字符截断：</p>
+ * <ul>
+ *   <li>SSE 格式：按行切分，"data:" 行的 JSON 负载交给同一个非阻塞 Jackson 解析器解析，
+ *       输出 content / think / end 事件</li>
+ *   <li>非 SSE 格式（上游直接返回文本）：只解码完整的 UTF-8 字符，不完整的尾部字节留到下一个缓冲区</li>
+ * </ul>
+ *
+ * <p>每个上游流使用一个独立实例，非线程安全。</p>
+ */
+public class SseEventDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseEventDecoder.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final byte[] DATA_FIELD = "data:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[][] SSE_FIELDS = {
+            DATA_FIELD,
+            "event:".getBytes(StandardCharsets.US_ASCII),
+            "id:".getBytes(StandardCharsets.US_ASCII),
+            "retry:".getBytes(StandardCharsets.US_ASCII),
+            ":".getBytes(StandardCharsets.US_ASCII)
+    };
+
+    /**
+     * 判断流格式前最多观察的字节数
+     */
+    private static final int MODE_PROBE_LENGTH = 16;
+
+    private enum Mode { UNKNOWN, SSE, RAW }
+
+    private Mode mode = Mode.UNKNOWN;
+
+    /**
+     * 尚未处理完的字节：SSE模式下为当前行，RAW模式下为不完整的UTF-8尾部
+     */
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+
+    /**
+     * 整个流复用的非阻塞JSON解析器，解析失败时重建
+     */
+    private JsonParser parser;
+
+    /**
+     * 解码一个上游缓冲区，缓冲区在方法内释放
+     *
+     * @param buffer 上游数据缓冲区
+     * @return 本次解码得到的事件，可能为空
+     */
+    public List<StreamEvent> decode(DataBuffer buffer) {
+        List<StreamEvent> events = new ArrayList<>(2);
+        try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+            while (iterator.hasNext()) {
+                ByteBuffer byteBuffer = iterator.next();
+                while (byteBuffer.hasRemaining()) {
+                    accept(byteBuffer.get(), events);
+                }
+            }
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+        if (mode == Mode.RAW) {
+            flushRawText(events, false);
+        }
+        return events;
+    }
+
+    /**
+     * 上游流结束时调用，输出剩余的数据
+     *
+     * @return 剩余数据对应的事件
+     */
+    public List<StreamEvent> finish() {
+        List<StreamEvent> events = new ArrayList<>(1);
+        if (mode == Mode.UNKNOWN && pendingLength > 0) {
+            mode = detectMode();
+        }
+        if (mode == Mode.SSE && pendingLength > 0) {
+            handleLine(events);
+        } else if (mode == Mode.RAW) {
+            flushRawText(events, true);
+        }
+        closeParser();
+        return events.isEmpty() ? Collections.emptyList() : events;
+    }
+
+    private void accept(byte b, List<StreamEvent> events) {
+        append(b);
+        if (mode == Mode.UNKNOWN) {
+            if (b != '\n' && pendingLength < MODE_PROBE_LENGTH) {
+                return;
+            }
+            mode = detectMode();
+            if (mode == Mode.RAW) {
+                return;
+            }
+        }
+        if (mode == Mode.SSE && b == '\n') {
+            handleLine(events);
+        }
+    }
+
+    private void append(byte b) {
+        if (pendingLength == pending.length) {
+            byte[] grown = new byte[pending.length * 2];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        pending[pendingLength++] = b;
+    }
+
+    /**
+     * 根据开头的字节判断上游是否为SSE格式
+     */
+    private Mode detectMode() {
+        int start = skipWhitespace(0, pendingLength);
+        if (start == pendingLength && pendingLength < MODE_PROBE_LENGTH) {
+            // 只有空白，继续等待
+            return Mode.UNKNOWN;
+        }
+        for (byte[] field : SSE_FIELDS) {
+            if (startsWith(start, pendingLength, field)) {
+                // 开头的空行在SSE中没有意义，直接丢弃
+                System.arraycopy(pending, start, pending, 0, pendingLength - start);
+                pendingLength -= start;
+                return Mode.SSE;
+            }
+        }
+        logger.debug("上游响应不是SSE格式，按原始文本解码");
+        return Mode.RAW;
+    }
+
+    /**
+     * 处理一行完整的SSE数据（pending中保存的内容，可能以换行符结尾）
+     */
+    private void handleLine(List<StreamEvent> events) {
+        int end = pendingLength;
+        if (end > 0 && pending[end - 1] == '\n') {
+            end--;
+        }
+        if (end > 0 && pending[end - 1] == '\r') {
+            end--;
+        }
+        try {
+            if (end == 0 || pending[0] == ':') {
+                return; // 空行或注释
+            }
+            if (!startsWith(0, end, DATA_FIELD)) {
+                if (!isSseField(end)) {
+                    // SSE流中夹杂的非SSE文本，按正文处理
+                    events.add(StreamEvent.content(new String(pending, 0, end, StandardCharsets.UTF_8)));
+                }
+                return;
+            }
+            int start = DATA_FIELD.length;
+            if (start < end && pending[start] == ' ') {
+                start++;
+            }
+            StreamEvent event = decodePayload(start, end);
+            if (event != null) {
+                events.add(event);
+            }
+        } finally {
+            pendingLength = 0;
+        }
+    }
+
+    private boolean isSseField(int end) {
+        for (byte[] field : SSE_FIELDS) {
+            if (startsWith(0, end, field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private StreamEvent decodePayload(int start, int end) {
+        int first = skipWhitespace(start, end);
+        if (first < end && pending[first] == '{') {
+            StreamEvent event = parseJson(first, end);
+            if (event != null) {
+                return event;
+            }
+        }
+        String text = new String(pending, start, end - start, StandardCharsets.UTF_8);
+        if ("[DONE]".equals(text.trim())) {
+            return StreamEvent.end();
+        }
+        return text.isEmpty() ? null : StreamEvent.content(text);
+    }
+
+    /**
+     * 使用复用的非阻塞解析器读取 {"type": ..., "data": ...}
+     *
+     * @return 解析出的事件，JSON不合法时返回null
+     */
+    private StreamEvent parseJson(int start, int end) {
+        try {
+            if (parser == null) {
+                parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+            }
+            ByteArrayFeeder feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            // 连同行尾一起送入，使相邻两个根对象之间有分隔符
+            feeder.feedInput(pending, start, Math.max(end, pendingLength));
+
+            String type = null;
+            String data = null;
+            int depth = 0;
+            JsonToken token;
+            // 读到NOT_AVAILABLE为止，保证本行输入全部被消费，下一行才能继续送入
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                } else if (token == JsonToken.FIELD_NAME && depth == 1) {
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if (value == null || value == JsonToken.NOT_AVAILABLE) {
+                        break;
+                    }
+                    if (value.isStructStart()) {
+                        depth++;
+                    } else if ("type".equals(name)) {
+                        type = parser.getText();
+                    } else if ("data".equals(name)) {
+                        data = parser.getText();
+                    }
+                }
+            }
+            if (depth != 0) {
+                // 行内的JSON不完整，丢弃解析器状态
+                closeParser();
+                return null;
+            }
+            if (type == null && data == null) {
+                return null;
+            }
+            return new StreamEvent(StreamEvent.Type.fromWireName(type), data != null ? data : "");
+        } catch (IOException e) {
+            logger.debug("SSE数据行不是合法JSON，按原始文本处理: {}", e.getMessage());
+            closeParser();
+            return null;
+        }
+    }
+
+    /**
+     * 输出RAW模式下已完整的UTF-8文本
+     *
+     * @param endOfStream 是否为流结束，结束时不再保留不完整字节
+     */
+    private void flushRawText(List<StreamEvent> events, boolean endOfStream) {
+        int complete = endOfStream ? pendingLength : completeUtf8Length();
+        if (complete == 0) {
+            return;
+        }
+        events.add(StreamEvent.content(new String(pending, 0, complete, StandardCharsets.UTF_8)));
+        int remaining = pendingLength - complete;
+        if (remaining > 0) {
+            System.arraycopy(pending, complete, pending, 0, remaining);
+        }
+        pendingLength = remaining;
+    }
+
+    /**
+     * 计算pending中以完整UTF-8字符结尾的前缀长度
+     */
+    private int completeUtf8Length() {
+        // 多字节字符最长4字节，只需检查末尾最多3个字节
+        for (int i = pendingLength - 1; i >= Math.max(0, pendingLength - 3); i--) {
+            int b = pending[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue; // 后续字节
+            }
+            int expected = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return pendingLength - i >= expected ? pendingLength : i;
+        }
+        return pendingLength;
+    }
+
+    private int skipWhitespace(int start, int end) {
+        int i = start;
+        while (i < end && (pending[i] == ' ' || pending[i] == '\t' || pending[i] == '\r' || pending[i] == '\n')) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (pending[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeParser() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+                // 关闭失败不影响后续解析
+            }
+            parser = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.example.backendai.util;
+
+import java.text.Normalizer;
+
+/**
+ * 问题文本归一化
+ *
+ * <p>NFKC归一化（全角字母、数字、标点转半角）、转小写，并去掉标点和空白，
+ * 只保留文字和数字。"借书期限是多久？" 和 "借书期限是多久 ?" 归一化后相同，
+ * 用作分类器特征和缓存键。</p>
+ */
+public final class TextNormalizer {
+
+    private TextNormalizer() {
+    }
+
+    /**
+     * @param text 原始文本，可以为null
+     * @return 归一化后的文本，null返回空字符串
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        StringBuilder normalized = new StringBuilder(folded.length());
+        folded.codePoints()
+                .filter(Character::isLetterOrDigit)
+                .map(Character::toLowerCase)
+                .forEach(normalized::appendCodePoint);
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.backendai.util;
+
+/**
+ * 中英文混合文本的token数估算
+ *
+ * <p>不加载分词器，按字符类别近似：</p>
+ * <ul>
+ *   <li>汉字、假名、全角标点：每个1个token</li>
+ *   <li>连续的英文字母：每4个字母1个token，不足4个按1个计</li>
+ *   <li>数字：每个1个token</li>
+ *   <li>空白不计，其余符号每个1个token</li>
+ * </ul>
+ *
+ * <p>对Qwen等中文模型的分词器略偏高，用于预算控制时偏保守。</p>
+ */
+public final class TokenEstimator {
+
+    private static final int LETTERS_PER_TOKEN = 4;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * @param text 文本，可以为null
+     * @return 估算的token数
+     */
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int tokens = 0;
+        int letters = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80 && Character.isLetter(c)) {
+                letters++;
+                continue;
+            }
+            if (letters > 0) {
+                tokens += (letters + LETTERS_PER_TOKEN - 1) / LETTERS_PER_TOKEN;
+                letters = 0;
+            }
+            if (Character.isHighSurrogate(c)) {
+                // 代理对按一个字符计
+                i++;
+                tokens++;
+            } else if (!Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        if (letters > 0) {
+            tokens += (letters + LETTERS_PER_TOKEN - 1) / LETTERS_PER_TOKEN;
+        }
+        return tokens;
+    }
+
+    /**
+     * 截取估算token数不超过 maxTokens 的前缀
+     *
+     * @param text 文本
+     * @param maxTokens 最大token数
+     * @return 原文本或其前缀
+     */
+    public static String truncate(String text, int maxTokens) {
+        if (text == null || maxTokens <= 0) {
+            return "";
+        }
+        int tokens = 0;
+        int letters = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int cost;
+            if (c < 0x80 && Character.isLetter(c)) {
+                // 连续字母每 LETTERS_PER_TOKEN 个的第一个计1
+                cost = letters % LETTERS_PER_TOKEN == 0 ? 1 : 0;
+                letters++;
+            } else {
+                letters = 0;
+                cost = Character.isWhitespace(c) ? 0 : 1;
+            }
+            if (tokens + cost > maxTokens) {
+                return text.substring(0, i);
+            }
+            tokens += cost;
+            if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                i++;
+            }
+        }
+        return text;
+    }
+}
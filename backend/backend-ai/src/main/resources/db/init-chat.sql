@@ -6,6 +6,9 @@ CREATE TABLE IF NOT EXISTS `chat_session` (
   `created_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `updated_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   `last_message_preview` VARCHAR(255) DEFAULT NULL COMMENT '最后一条消息预览',
+  `summary` TEXT DEFAULT NULL COMMENT '较早对话的滚动摘要',
+  `summary_message_count` INT NOT NULL DEFAULT 0 COMMENT '摘要覆盖的消息数',
+  `summary_until` DATETIME DEFAULT NULL COMMENT '摘要覆盖的最后一条消息的创建时间',
   PRIMARY KEY (`id`),
   KEY `idx_user_id` (`user_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='聊天会话表';
@@ -18,9 +21,10 @@ CREATE TABLE IF NOT EXISTS `chat_message` (
   `role` VARCHAR(20) NOT NULL COMMENT '角色 (user/assistant)',
   `content` TEXT NOT NULL COMMENT '消息内容',
   `create_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `token_count` INT DEFAULT NULL COMMENT '内容的估算token数',
   PRIMARY KEY (`id`),
-  KEY `idx_session_id` (`session_id`),
-  KEY `idx_user_id` (`user_id`)
+  KEY `idx_session_time` (`session_id`, `create_time`),
+  KEY `idx_user_time` (`user_id`, `create_time`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='聊天消息表';
 
 -- 添加外键约束
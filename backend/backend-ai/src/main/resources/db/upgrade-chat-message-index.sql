@@ -0,0 +1,7 @@
+-- 已有数据库的升级脚本：最近消息查询按 (session_id, create_time) 索引倒序读取并 LIMIT，
+-- 不再读取整个会话。新索引以 session_id 开头，可替代原单列索引和外键所需的索引。
+ALTER TABLE `chat_message`
+  ADD KEY `idx_session_time` (`session_id`, `create_time`);
+
+ALTER TABLE `chat_message`
+  DROP KEY `idx_session_id`;
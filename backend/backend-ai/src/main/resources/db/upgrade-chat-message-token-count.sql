@@ -0,0 +1,4 @@
+-- 已有数据库的升级脚本：保存每条消息的估算token数，组装模型上下文时不再重复估算。
+-- 旧消息为NULL，读取时按需估算。
+ALTER TABLE `chat_message`
+  ADD COLUMN `token_count` INT DEFAULT NULL COMMENT '内容的估算token数' AFTER `create_time`;
@@ -0,0 +1,7 @@
+-- 已有数据库的升级脚本：加载用户历史消息检索索引时按 (user_id, create_time) 索引倒序读取并 LIMIT，
+-- 不再对用户的全部消息排序。新索引以 user_id 开头，可替代原单列索引和外键所需的索引。
+ALTER TABLE `chat_message`
+  ADD KEY `idx_user_time` (`user_id`, `create_time`);
+
+ALTER TABLE `chat_message`
+  DROP KEY `idx_user_id`;
@@ -0,0 +1,5 @@
+-- 已有数据库的升级脚本：保存长会话较早对话的滚动摘要，由后台任务按对话轮数刷新。
+ALTER TABLE `chat_session`
+  ADD COLUMN `summary` TEXT DEFAULT NULL COMMENT '较早对话的滚动摘要' AFTER `last_message_preview`,
+  ADD COLUMN `summary_message_count` INT NOT NULL DEFAULT 0 COMMENT '摘要覆盖的消息数' AFTER `summary`,
+  ADD COLUMN `summary_until` DATETIME DEFAULT NULL COMMENT '摘要覆盖的最后一条消息的创建时间' AFTER `summary_message_count`;
@@ -0,0 +1,207 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.backendai.entity.ChatMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 队列满时的写入顺序，未写入消息的读取
+ */
+class ChatMessageWriterTest {
+
+    /**
+     * 模拟的 chat_message 表：消息ID -> 内容
+     */
+    private final Map<String, String> table = new ConcurrentHashMap<>();
+
+    /**
+     * 后台线程的第一批写入在这里等待，模拟数据库变慢
+     */
+    private final CountDownLatch databaseSlow = new CountDownLatch(1);
+
+    private final AtomicBoolean firstWrite = new AtomicBoolean(true);
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ChatMessageWriter writer;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenAnswer(invocation -> {
+                    if (firstWrite.getAndSet(false)) {
+                        databaseSlow.await(5, TimeUnit.SECONDS);
+                    }
+                    String sql = invocation.getArgument(0);
+                    Collection<?> rows = invocation.getArgument(1);
+                    if (sql.startsWith("INSERT INTO chat_message")) {
+                        for (Object row : rows) {
+                            ChatMessage message = (ChatMessage) row;
+                            table.put(message.getId(), message.getContent());
+                        }
+                    } else if (sql.contains("CONCAT")) {
+                        for (Object row : rows) {
+                            Map.Entry<String, StringBuilder> append = (Map.Entry<String, StringBuilder>) row;
+                            // 消息尚未插入时更新0行，追加的内容丢失
+                            table.computeIfPresent(append.getKey(), (id, content) -> content + append.getValue());
+                        }
+                    }
+                    return new int[0][];
+                });
+
+        writer = newWriter(2, 200);
+    }
+
+    private ChatMessageWriter newWriter(int queueCapacity, int batchSize) {
+        ChatMessageWriter writer = new ChatMessageWriter();
+        ReflectionTestUtils.setField(writer, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(writer, "transactionTemplate",
+                new TransactionTemplate(mock(PlatformTransactionManager.class)));
+        ReflectionTestUtils.setField(writer, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(writer, "mode", ChatMessageWriter.Mode.WRITE_BEHIND);
+        ReflectionTestUtils.setField(writer, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(writer, "batchSize", batchSize);
+        ReflectionTestUtils.setField(writer, "shutdownTimeoutSeconds", 5L);
+        writer.init();
+        return writer;
+    }
+
+    @AfterEach
+    void tearDown() {
+        databaseSlow.countDown();
+        writer.shutdown();
+    }
+
+    @Test
+    void appendAfterFullQueueIsWrittenAfterQueuedInsert() throws Exception {
+        writer.write(message("m0"));
+        // 等后台线程取走第一条并卡在数据库写入
+        Collection<?> queue = (Collection<?>) ReflectionTestUtils.getField(writer, "queue");
+        waitUntil(queue::isEmpty);
+
+        writer.write(message("m1"));
+        writer.append("s1", "m1", "a");
+
+        // 队列已满，本次追加在调用线程写入，必须排在队列中 m1 的插入之后
+        Thread overflow = new Thread(() -> writer.append("s1", "m1", "b"));
+        overflow.start();
+        Thread.sleep(200);
+        databaseSlow.countDown();
+        overflow.join(5000);
+
+        writer.shutdown();
+        assertTrue(table.containsKey("m0"));
+        assertEquals("ab", table.get("m1"));
+    }
+
+    @Test
+    void pendingIncludesBatchBlockedInDatabase() throws Exception {
+        writer.write(message("m0"));
+        Collection<?> queue = (Collection<?>) ReflectionTestUtils.getField(writer, "queue");
+        waitUntil(queue::isEmpty);
+
+        // m0 已离开队列、正在写入，追加内容还在队列中
+        writer.append("s1", "m0", "x");
+        List<ChatMessage> pending = writer.pending("s1");
+
+        assertEquals(1, pending.size());
+        assertEquals("m0", pending.get(0).getId());
+        assertEquals("x", pending.get(0).getContent());
+        assertNull(table.get("m0"));
+    }
+
+    @Test
+    void submittedMessageIsAlwaysInPendingOrDatabase() throws Exception {
+        databaseSlow.countDown();
+        writer.shutdown();
+        writer = newWriter(10000, 3);
+
+        int total = 20000;
+        AtomicBoolean done = new AtomicBoolean(false);
+        int[] submitted = {-1};
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                writer.write(message("m" + i));
+                synchronized (submitted) {
+                    submitted[0] = i;
+                }
+            }
+            done.set(true);
+        });
+        producer.start();
+        try {
+            // 之前的消息都已写入数据库的位置
+            int written = 0;
+            while (!done.get()) {
+                int last;
+                synchronized (submitted) {
+                    last = submitted[0];
+                }
+                // 与查询会话消息的顺序相同：先读 pending，再读数据库
+                Set<String> ids = writer.pending("s1").stream().map(ChatMessage::getId).collect(Collectors.toSet());
+                while (written <= last && table.containsKey("m" + written)) {
+                    written++;
+                }
+                for (int i = written; i <= last; i++) {
+                    String id = "m" + i;
+                    if (!ids.contains(id) && !table.containsKey(id)) {
+                        fail("已提交的消息 " + id + " 既不在 pending 中也不在数据库中");
+                    }
+                }
+            }
+        } finally {
+            producer.join(10000);
+        }
+    }
+
+    private static ChatMessage message(String id) {
+        return ChatMessage.builder()
+                .id(id)
+                .sessionId("s1")
+                .userId(1L)
+                .role("assistant")
+                .content("")
+                .createTime(new Date())
+                .tokenCount(0)
+                .build();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
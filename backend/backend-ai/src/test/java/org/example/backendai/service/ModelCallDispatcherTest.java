@@ -0,0 +1,144 @@
+package org.example.backendai.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.backendai.service.ModelCallDispatcher.DispatchRejectedException;
+import org.example.backendai.service.ModelCallDispatcher.Priority;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 并发名额的分配顺序、取消和排队拒绝
+ */
+class ModelCallDispatcherTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final List<String> started = new CopyOnWriteArrayList<>();
+
+    private ModelCallDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() {
+        dispatcher = new ModelCallDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(dispatcher, "interactiveMaxQueue", 10);
+        ReflectionTestUtils.setField(dispatcher, "interactiveQueueTimeoutMillis", 5000L);
+        ReflectionTestUtils.setField(dispatcher, "backgroundMaxConcurrent", 1);
+        ReflectionTestUtils.setField(dispatcher, "backgroundMaxQueue", 10);
+        ReflectionTestUtils.setField(dispatcher, "backgroundQueueTimeoutMillis", 5000L);
+        dispatcher.init();
+    }
+
+    @Test
+    void queuedInteractiveCallsRunBeforeEarlierBackgroundCalls() {
+        Disposable holder = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+
+        record(Priority.BACKGROUND, "b1");
+        record(Priority.INTERACTIVE, "i1");
+        record(Priority.BACKGROUND, "b2");
+        record(Priority.INTERACTIVE, "i2");
+        assertEquals(List.of(), started);
+
+        holder.dispose();
+
+        // 同一优先级按排队顺序，INTERACTIVE 全部先于 BACKGROUND
+        assertEquals(List.of("i1", "i2", "b1", "b2"), started);
+        assertEquals(0.0, gauge("ai.client.dispatch.running", Priority.INTERACTIVE));
+        assertEquals(0.0, gauge("ai.client.dispatch.running", Priority.BACKGROUND));
+    }
+
+    @Test
+    void backgroundCallsAreLimitedSeparately() {
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrent", 3);
+        Disposable background = dispatcher.call(Priority.BACKGROUND, Mono.never()).subscribe();
+
+        // 后台名额已满，新的后台调用排队，对话调用不受影响
+        record(Priority.BACKGROUND, "b1");
+        record(Priority.INTERACTIVE, "i1");
+        assertEquals(List.of("i1"), started);
+        assertEquals(1.0, gauge("ai.client.dispatch.queued", Priority.BACKGROUND));
+
+        background.dispose();
+        assertEquals(List.of("i1", "b1"), started);
+    }
+
+    @Test
+    void permitIsReturnedWhenGrantedCallIsCancelled() {
+        Disposable holder = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+        Disposable granted = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+        record(Priority.INTERACTIVE, "i1");
+
+        holder.dispose();
+        // 名额已分配给第二个调用，i1 仍在排队
+        assertEquals(List.of(), started);
+        assertEquals(1.0, gauge("ai.client.dispatch.running", Priority.INTERACTIVE));
+
+        granted.dispose();
+        assertEquals(List.of("i1"), started);
+        assertEquals(0.0, gauge("ai.client.dispatch.running", Priority.INTERACTIVE));
+    }
+
+    @Test
+    void cancelledWaiterDoesNotTakeAPermit() {
+        Disposable holder = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+        Disposable waiter = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+        record(Priority.INTERACTIVE, "i1");
+
+        waiter.dispose();
+        assertEquals(1.0, gauge("ai.client.dispatch.queued", Priority.INTERACTIVE));
+
+        holder.dispose();
+        assertEquals(List.of("i1"), started);
+        assertEquals(0.0, gauge("ai.client.dispatch.running", Priority.INTERACTIVE));
+    }
+
+    @Test
+    void queuedCallIsRejectedAfterQueueTimeout() {
+        ReflectionTestUtils.setField(dispatcher, "interactiveQueueTimeoutMillis", 100L);
+        Disposable holder = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+
+        assertThrows(DispatchRejectedException.class,
+                () -> dispatcher.call(Priority.INTERACTIVE, Mono.just("late")).block(Duration.ofSeconds(5)));
+        assertEquals(0.0, gauge("ai.client.dispatch.queued", Priority.INTERACTIVE));
+        assertEquals(1.0, meterRegistry.counter("ai.client.dispatch.rejected", "priority", "INTERACTIVE").count());
+
+        holder.dispose();
+        assertEquals("next", dispatcher.call(Priority.INTERACTIVE, Mono.just("next")).block(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void callIsRejectedWhenQueueIsFull() {
+        ReflectionTestUtils.setField(dispatcher, "interactiveMaxQueue", 1);
+        Disposable holder = dispatcher.call(Priority.INTERACTIVE, Mono.never()).subscribe();
+        record(Priority.INTERACTIVE, "i1");
+
+        assertThrows(DispatchRejectedException.class,
+                () -> dispatcher.call(Priority.INTERACTIVE, Mono.just("i2")).block(Duration.ofSeconds(5)));
+
+        holder.dispose();
+        assertEquals(List.of("i1"), started);
+    }
+
+    /**
+     * 发起一次立即完成的调用，开始执行时记录名称
+     */
+    private void record(Priority priority, String name) {
+        dispatcher.call(priority, Mono.fromRunnable(() -> started.add(name))).subscribe();
+    }
+
+    private double gauge(String name, Priority priority) {
+        return meterRegistry.get(name).tag("priority", priority.name()).gauge().value();
+    }
+}
@@ -0,0 +1,164 @@
+package org.example.backendai.util;
+
+import org.example.backendai.util.NaiveBayesTextClassifier.LabeledText;
+import org.example.backendai.util.NaiveBayesTextClassifier.Prediction;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 本地问题分类器的离线评估
+ *
+ * <p>对 classifier/question_types.jsonl 做分层5折交叉验证，输出Markdown格式的准确率、
+ * 各置信度阈值下的本地覆盖率和分类延迟，结果保存在 classifier/evaluation-report.md。</p>
+ *
+ * <p>只在测试代码中，不随应用打包。运行方式（backend-ai目录下）：</p>
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.example.backendai.util.QuestionClassifierEvaluation \
+ *     > src/main/resources/classifier/evaluation-report.md
+ * </pre>
+ */
+public class QuestionClassifierEvaluation {
+
+    private static final String DATA_RESOURCE = "/classifier/question_types.jsonl";
+    private static final int FOLDS = 5;
+    private static final long SEED = 20240501L;
+    private static final double[] THRESHOLDS = {0.0, 0.5, 0.6, 0.7, 0.8, 0.9};
+
+    public static void main(String[] args) throws Exception {
+        List<LabeledText> examples;
+        try (InputStream input = QuestionClassifierEvaluation.class.getResourceAsStream(DATA_RESOURCE)) {
+            if (input == null) {
+                throw new IllegalStateException("找不到训练数据: " + DATA_RESOURCE);
+            }
+            examples = NaiveBayesTextClassifier.readExamples(input);
+        }
+
+        // 分层划分：每个类别内打乱后轮流分到各折
+        Map<String, List<LabeledText>> byLabel = new LinkedHashMap<>();
+        for (LabeledText example : examples) {
+            byLabel.computeIfAbsent(example.getLabel(), k -> new ArrayList<>()).add(example);
+        }
+        List<List<LabeledText>> folds = new ArrayList<>();
+        for (int i = 0; i < FOLDS; i++) {
+            folds.add(new ArrayList<>());
+        }
+        Random random = new Random(SEED);
+        for (List<LabeledText> group : byLabel.values()) {
+            List<LabeledText> shuffled = new ArrayList<>(group);
+            Collections.shuffle(shuffled, random);
+            for (int i = 0; i < shuffled.size(); i++) {
+                folds.get(i % FOLDS).add(shuffled.get(i));
+            }
+        }
+
+        List<String> labels = new ArrayList<>(byLabel.keySet());
+        List<LabeledText> evaluated = new ArrayList<>();
+        List<Prediction> predictions = new ArrayList<>();
+        for (int k = 0; k < FOLDS; k++) {
+            List<LabeledText> training = new ArrayList<>();
+            for (int i = 0; i < FOLDS; i++) {
+                if (i != k) {
+                    training.addAll(folds.get(i));
+                }
+            }
+            NaiveBayesTextClassifier classifier = NaiveBayesTextClassifier.train(training);
+            for (LabeledText example : folds.get(k)) {
+                evaluated.add(example);
+                predictions.add(classifier.classify(example.getText()));
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("# 本地问题分类器评估报告\n\n");
+        report.append("由 `QuestionClassifierEvaluation` 生成，重新训练数据后请重新运行并更新本文件。\n\n");
+        report.append(String.format("- 数据: `classifier/question_types.jsonl`，%d 条，%d 个类别%n", examples.size(), labels.size()));
+        report.append(String.format("- 方法: 分层%d折交叉验证，随机种子 %d%n", FOLDS, SEED));
+        report.append("- 模型: 字符1~3-gram多项式朴素贝叶斯，均匀先验\n\n");
+
+        report.append("## 各类别\n\n");
+        report.append("| 类别 | 样本数 | 精确率 | 召回率 |\n");
+        report.append("|---|---|---|---|\n");
+        for (String label : labels) {
+            int support = 0;
+            int predicted = 0;
+            int correct = 0;
+            for (int i = 0; i < evaluated.size(); i++) {
+                boolean actual = evaluated.get(i).getLabel().equals(label);
+                boolean guessed = predictions.get(i).getLabel().equals(label);
+                support += actual ? 1 : 0;
+                predicted += guessed ? 1 : 0;
+                correct += actual && guessed ? 1 : 0;
+            }
+            report.append(String.format("| %s | %d | %s | %s |%n", label, support,
+                    percent(correct, predicted), percent(correct, support)));
+        }
+
+        report.append("\n## 置信度阈值\n\n");
+        report.append("覆盖率为置信度不低于阈值、由本地分类器直接返回的问题比例，其余问题交给上游模型。\n\n");
+        report.append("| 阈值 | 本地覆盖率 | 本地部分准确率 | 本地错误占全部问题 |\n");
+        report.append("|---|---|---|---|\n");
+        for (double threshold : THRESHOLDS) {
+            int covered = 0;
+            int correct = 0;
+            for (int i = 0; i < evaluated.size(); i++) {
+                Prediction prediction = predictions.get(i);
+                if (prediction.getConfidence() >= threshold) {
+                    covered++;
+                    if (prediction.getLabel().equals(evaluated.get(i).getLabel())) {
+                        correct++;
+                    }
+                }
+            }
+            report.append(String.format("| %.1f | %s | %s | %s |%n", threshold,
+                    percent(covered, evaluated.size()), percent(correct, covered),
+                    percent(covered - correct, evaluated.size())));
+        }
+
+        report.append("\n## 延迟\n\n");
+        NaiveBayesTextClassifier classifier = NaiveBayesTextClassifier.train(examples);
+        long trainStart = System.nanoTime();
+        NaiveBayesTextClassifier.train(examples);
+        long trainNanos = System.nanoTime() - trainStart;
+        for (int round = 0; round < 200; round++) {
+            for (LabeledText example : examples) {
+                classifier.classify(example.getText());
+            }
+        }
+        int rounds = 20;
+        long[] nanos = new long[examples.size() * rounds];
+        int n = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (LabeledText example : examples) {
+                long start = System.nanoTime();
+                classifier.classify(example.getText());
+                nanos[n++] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        double mean = Arrays.stream(nanos).average().orElse(0);
+        report.append(String.format("单线程、预热后对全部问题各分类%d次（%d次）:%n%n", rounds, nanos.length));
+        report.append(String.format("- 平均 %.1f µs，p50 %.1f µs，p99 %.1f µs%n",
+                mean / 1000, nanos[nanos.length / 2] / 1000.0, nanos[(int) (nanos.length * 0.99)] / 1000.0));
+        report.append(String.format("- 启动时训练全部数据 %.1f ms%n", trainNanos / 1_000_000.0));
+        report.append("\n作为对比，上游 `/analyze_type` 和 `/generate` 分类需要一次模型推理，耗时为数百毫秒到数秒。\n");
+
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+        out.print(report);
+    }
+
+    private static String percent(int numerator, int denominator) {
+        return denominator == 0 ? "-" : String.format("%.1f%%", numerator * 100.0 / denominator);
+    }
+}
@@ -0,0 +1,190 @@
+package org.example.backendai.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 正文合并的发送时机、事件顺序和慢客户端处理
+ */
+class SseCoalescerTest {
+
+    private final Scheduler timer = Schedulers.newSingle("sse-coalescer-test");
+
+    private final AtomicInteger slowClients = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        timer.dispose();
+    }
+
+    @Test
+    void contentIsFlushedAfterMaxLatency() throws Exception {
+        Sinks.Many<ServerSentEvent<Object>> source = Sinks.many().unicast().onBackpressureBuffer();
+        Collector collector = subscribe(source.asFlux(), coalescer(Duration.ofMillis(50), 1024, 4096,
+                SseCoalescer.SlowClientPolicy.BACKPRESSURE), Long.MAX_VALUE);
+
+        source.tryEmitNext(content("借书"));
+        source.tryEmitNext(content("期限"));
+        assertTrue(collector.texts().isEmpty(), "未达到等待时间和字节数时不应发送");
+
+        waitUntil(() -> !collector.texts().isEmpty());
+        assertEquals(List.of("借书期限"), collector.texts());
+    }
+
+    @Test
+    void contentIsFlushedWhenMaxBytesReached() {
+        Sinks.Many<ServerSentEvent<Object>> source = Sinks.many().unicast().onBackpressureBuffer();
+        Collector collector = subscribe(source.asFlux(), coalescer(Duration.ofSeconds(10), 6, 4096,
+                SseCoalescer.SlowClientPolicy.BACKPRESSURE), Long.MAX_VALUE);
+
+        source.tryEmitNext(content("借"));
+        assertTrue(collector.texts().isEmpty());
+        // 两个中文字符共6个UTF-8字节，达到 maxBytes 立即发送
+        source.tryEmitNext(content("书"));
+
+        assertEquals(List.of("借书"), collector.texts());
+    }
+
+    @Test
+    void otherEventsKeepTheirPositionAfterMergedContent() {
+        ServerSentEvent<Object> books = ServerSentEvent.<Object>builder(Map.of("type", "books", "data", "[]")).build();
+        Flux<ServerSentEvent<Object>> source = Flux.just(content("a"), content("b"), books, content("c"));
+        Collector collector = subscribe(source, coalescer(Duration.ofSeconds(10), 1024, 4096,
+                SseCoalescer.SlowClientPolicy.BACKPRESSURE), Long.MAX_VALUE);
+
+        assertTrue(collector.completed.get());
+        assertEquals(3, collector.events.size());
+        assertEquals("ab", text(collector.events.get(0)));
+        assertEquals(books, collector.events.get(1));
+        assertEquals("c", text(collector.events.get(2)));
+    }
+
+    @Test
+    void slowClientPausesUpstreamUnderBackpressure() {
+        AtomicLong upstreamRequested = new AtomicLong();
+        Flux<ServerSentEvent<Object>> source = Flux.range(0, 100)
+                .map(i -> content("xx"))
+                .doOnRequest(upstreamRequested::addAndGet);
+        Collector collector = subscribe(source, coalescer(Duration.ofSeconds(10), 4, 10,
+                SseCoalescer.SlowClientPolicy.BACKPRESSURE), 0);
+
+        // 客户端没有需求：积压超过10字节后停止读取上游
+        assertTrue(upstreamRequested.get() < 100, "积压过多时应暂停读取上游");
+        assertEquals(1, slowClients.get());
+        assertTrue(collector.events.isEmpty());
+
+        collector.request(Long.MAX_VALUE);
+        assertTrue(collector.completed.get());
+        assertEquals("xx".repeat(100), String.join("", collector.texts()));
+        assertNull(collector.error.get());
+    }
+
+    @Test
+    void slowClientIsDisconnectedUnderDisconnectPolicy() {
+        AtomicBoolean upstreamCancelled = new AtomicBoolean();
+        Flux<ServerSentEvent<Object>> source = Flux.range(0, 100)
+                .map(i -> content("xx"))
+                .doOnCancel(() -> upstreamCancelled.set(true));
+        Collector collector = subscribe(source, coalescer(Duration.ofSeconds(10), 4, 10,
+                SseCoalescer.SlowClientPolicy.DISCONNECT), 0);
+
+        assertTrue(upstreamCancelled.get());
+        assertEquals(1, slowClients.get());
+        // 断开时丢弃积压的正文，直接以错误结束
+        assertInstanceOf(IllegalStateException.class, collector.error.get());
+        assertTrue(collector.events.isEmpty());
+    }
+
+    private SseCoalescer coalescer(Duration maxLatency, int maxBytes, int maxPendingBytes,
+                                   SseCoalescer.SlowClientPolicy policy) {
+        return new SseCoalescer(maxLatency, maxBytes, maxPendingBytes, policy, timer, slowClients::incrementAndGet);
+    }
+
+    private static Collector subscribe(Flux<ServerSentEvent<Object>> source, SseCoalescer coalescer, long initialRequest) {
+        Collector collector = new Collector(initialRequest);
+        source.transform(coalescer).subscribe(collector);
+        return collector;
+    }
+
+    private static ServerSentEvent<Object> content(String text) {
+        return ServerSentEvent.<Object>builder(Map.of("type", "content", "data", text)).build();
+    }
+
+    private static String text(ServerSentEvent<Object> event) {
+        return (String) ((Map<?, ?>) event.data()).get("data");
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 按指定需求接收事件的下游
+     */
+    private static class Collector extends BaseSubscriber<ServerSentEvent<Object>> {
+        private final long initialRequest;
+        private final List<ServerSentEvent<Object>> events = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        private Collector(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            if (initialRequest > 0) {
+                request(initialRequest);
+            }
+        }
+
+        @Override
+        protected void hookOnNext(ServerSentEvent<Object> event) {
+            events.add(event);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            completed.set(true);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        private List<String> texts() {
+            List<String> texts = new ArrayList<>();
+            for (ServerSentEvent<Object> event : events) {
+                texts.add(text(event));
+            }
+            return texts;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.example.backendai.util;
+
+import org.example.backendai.DTO.StreamEvent;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 跨缓冲区边界的SSE事件和UTF-8字符解码
+ */
+class SseEventDecoderTest {
+
+    private final SseEventDecoder decoder = new SseEventDecoder();
+
+    @Test
+    void eventSplitAcrossBuffersIsDecodedOnce() {
+        List<StreamEvent> events = new ArrayList<>();
+        events.addAll(decode("data: {\"type\":\"content\",\"da"));
+        assertTrue(events.isEmpty());
+        events.addAll(decode("ta\":\"借书\"}\n\ndata: {\"type\":\"think\",\"data\":\"嗯\"}\n"));
+        events.addAll(decode("data: [DONE]\n"));
+
+        assertEquals(List.of("content: 借书", "think: 嗯", "end: "), describe(events));
+    }
+
+    @Test
+    void multiByteCharacterSplitInsideSseLine() {
+        byte[] bytes = "data: {\"type\":\"content\",\"data\":\"期限\"}\n".getBytes(StandardCharsets.UTF_8);
+        // “期”之前都是ASCII字符，在“期”的第一个字节之后切开
+        int split = new String(bytes, StandardCharsets.UTF_8).indexOf('期') + 1;
+        List<StreamEvent> events = new ArrayList<>();
+        events.addAll(decoder.decode(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(bytes, 0, split))));
+        events.addAll(decoder.decode(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(bytes, split, bytes.length))));
+        events.addAll(decoder.finish());
+
+        assertEquals(List.of("content: 期限"), describe(events));
+    }
+
+    @Test
+    void rawTextKeepsIncompleteCharacterForNextBuffer() {
+        String text = "借阅规则如下：本科生可借20本";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        StringBuilder decoded = new StringBuilder();
+        // 每次送入5个字节，中文字符必然被切开
+        for (int from = 0; from < bytes.length; from += 5) {
+            byte[] chunk = Arrays.copyOfRange(bytes, from, Math.min(from + 5, bytes.length));
+            for (StreamEvent event : decoder.decode(DefaultDataBufferFactory.sharedInstance.wrap(chunk))) {
+                assertEquals(StreamEvent.Type.CONTENT, event.getType());
+                assertTrue(event.getData().indexOf('�') < 0, "不应输出被截断的字符");
+                decoded.append(event.getData());
+            }
+        }
+        for (StreamEvent event : decoder.finish()) {
+            decoded.append(event.getData());
+        }
+
+        assertEquals(text, decoded.toString());
+    }
+
+    @Test
+    void finishEmitsLastLineWithoutNewline() {
+        List<StreamEvent> events = new ArrayList<>(decode("data: {\"type\":\"content\",\"data\":\"a\"}\n"));
+        events.addAll(decode("data: {\"type\":\"content\",\"data\":\"b\"}"));
+        assertEquals(List.of("content: a"), describe(events));
+
+        assertEquals(List.of("content: b"), describe(decoder.finish()));
+    }
+
+    @Test
+    void finishFlushesTruncatedRawTail() {
+        byte[] bytes = "借阅规则如下好".getBytes(StandardCharsets.UTF_8);
+        // 去掉最后一个字节，流在字符中间结束
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+        List<StreamEvent> events = new ArrayList<>(decoder.decode(DefaultDataBufferFactory.sharedInstance.wrap(truncated)));
+        assertEquals(List.of("content: 借阅规则如下"), describe(events));
+
+        List<StreamEvent> rest = decoder.finish();
+        assertEquals(1, rest.size());
+        assertEquals(StreamEvent.Type.CONTENT, rest.get(0).getType());
+    }
+
+    @Test
+    void commentsAndBlankLinesAreSkipped() {
+        List<StreamEvent> events = decode(": keep-alive\n\nevent: message\ndata: {\"type\":\"end\",\"data\":\"\"}\n");
+
+        assertEquals(List.of("end: "), describe(events));
+    }
+
+    private List<StreamEvent> decode(String text) {
+        return decoder.decode(DefaultDataBufferFactory.sharedInstance.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> describe(List<StreamEvent> events) {
+        List<String> described = new ArrayList<>();
+        for (StreamEvent event : events) {
+            described.add(event.toString());
+        }
+        return described;
+    }
+}